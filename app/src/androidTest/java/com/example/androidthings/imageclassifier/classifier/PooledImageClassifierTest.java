@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a pool of interpreters on the packaged model.
+ */
+public class PooledImageClassifierTest {
+    private static final String TAG = "PooledImageClassifier";
+
+    private static final ModelDescriptor MODEL = ModelDescriptor.MOBILENET_QUANT_V1_224;
+    private static final int IMAGES = 24;
+    private static final int SCALING_IMAGES = 64;
+
+    private static Bitmap createRandomBitmap(int width, int height, long seed) {
+        int[] pixels = new int[width * height];
+        Random random = new Random(seed);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static List<Bitmap> createImages(int count) {
+        List<Bitmap> images = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            images.add(createRandomBitmap(MODEL.getInputWidth(), MODEL.getInputHeight(), i));
+        }
+        return images;
+    }
+
+    private static PooledImageClassifier createPool(int poolSize) throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        MappedByteBuffer model = TensorFlowImageClassifier.loadModel(context, MODEL);
+        List<String> labels = TensorFlowImageClassifier.loadLabels(context, MODEL);
+        return new PooledImageClassifier(model, labels, MODEL, poolSize);
+    }
+
+    /**
+     * Tests that results arrive in submission order, and that an image that fails to classify
+     * is delivered with null results without holding back the ones after it.
+     */
+    @Test
+    public void testResultsAreDeliveredInOrder() throws Exception {
+        final int failing = IMAGES / 2;
+        List<Bitmap> images = createImages(IMAGES);
+        // A missing image makes the classifier throw
+        images.set(failing, null);
+
+        final List<Long> sequences = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Collection<Recognition>> results =
+                Collections.synchronizedList(new ArrayList<Collection<Recognition>>());
+        final CountDownLatch done = new CountDownLatch(IMAGES);
+        PooledImageClassifier pool = createPool(4);
+        try {
+            for (Bitmap image : images) {
+                pool.submit(image, new PooledImageClassifier.ResultListener() {
+                    @Override
+                    public void onResult(long sequence, Bitmap image,
+                                         Collection<Recognition> recognitions) {
+                        sequences.add(sequence);
+                        results.add(recognitions);
+                        done.countDown();
+                    }
+                });
+            }
+            Assert.assertTrue(done.await(2, TimeUnit.MINUTES));
+        } finally {
+            pool.destroyClassifier();
+        }
+
+        for (int i = 0; i < IMAGES; i++) {
+            Assert.assertEquals(i, (long) sequences.get(i));
+            if (i == failing) {
+                Assert.assertNull(results.get(i));
+            } else {
+                Assert.assertNotNull(results.get(i));
+            }
+        }
+    }
+
+    /**
+     * Tests that every pool size gives the same results, and logs the throughput of each, from
+     * one interpreter up to one per core.
+     */
+    @Test
+    public void testThroughputScalesWithCores() throws Exception {
+        List<Bitmap> images = createImages(SCALING_IMAGES);
+        final int cores = Runtime.getRuntime().availableProcessors();
+        // Recognition has no equals(), its text compares label, id and confidence
+        String expected = null;
+        double singleRate = 0;
+        for (int poolSize = 1; poolSize <= cores; poolSize *= 2) {
+            PooledImageClassifier pool = createPool(poolSize);
+            try {
+                // Warm up every interpreter
+                pool.recognizeAll(images.subList(0, poolSize));
+                final long start = System.nanoTime();
+                List<Collection<Recognition>> results = pool.recognizeAll(images);
+                final double rate = SCALING_IMAGES / ((System.nanoTime() - start) / 1e9);
+                if (expected == null) {
+                    expected = results.toString();
+                    singleRate = rate;
+                }
+                Assert.assertEquals(expected, results.toString());
+                Log.i(TAG, String.format(Locale.US,
+                        "%d interpreters on %d cores: %.1f images/s, %.2fx one interpreter",
+                        poolSize, cores, rate, rate / singleRate));
+            } finally {
+                pool.destroyClassifier();
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TensorFillerInstrumentationTest {
+    private static final String TAG = "TensorFillerTest";
+    private static final int SIZE = 224;
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    private static Bitmap createRandomBitmap(int width, int height) {
+        int[] pixels = new int[width * height];
+        Random random = new Random(42);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static int[] pixels(Bitmap bitmap) {
+        int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0,
+                bitmap.getWidth(), bitmap.getHeight());
+        return pixels;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    private static byte[] contents(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.capacity()];
+        buffer.rewind();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Tests that the uint8 fill writes the same bytes as the per-byte conversion.
+     */
+    @Test
+    public void testUint8MatchesPerByteConversion() {
+        Bitmap bitmap = createRandomBitmap(SIZE, SIZE);
+        ByteBuffer expected = allocate(SIZE * SIZE * 3);
+        TensorFlowHelper.convertBitmapToByteBuffer(bitmap, new int[SIZE * SIZE], expected);
+
+        ByteBuffer actual = allocate(SIZE * SIZE * 3);
+        TensorFiller.uint8(SIZE, SIZE).fill(pixels(bitmap), actual);
+
+        Assert.assertTrue(java.util.Arrays.equals(contents(expected), contents(actual)));
+    }
+
+    /**
+     * Tests that the float32 fill normalizes each channel.
+     */
+    @Test
+    public void testFloat32Normalization() {
+        Bitmap bitmap = Bitmap.createBitmap(new int[] {0xFF00807F}, 1, 1, Bitmap.Config.ARGB_8888);
+        ByteBuffer buffer = allocate(3 * 4);
+        TensorFiller.float32(1, 1, 127.5f, 127.5f).fill(pixels(bitmap), buffer);
+
+        buffer.rewind();
+        Assert.assertEquals(-1f, buffer.getFloat(), 1e-6f);
+        Assert.assertEquals(128 / 127.5f - 1f, buffer.getFloat(), 1e-6f);
+        Assert.assertEquals(127 / 127.5f - 1f, buffer.getFloat(), 1e-6f);
+    }
+
+    /**
+     * Tests that unpacking rows in parallel gives the same result as a single pass.
+     */
+    @Test
+    public void testRowParallelMatchesSinglePass() {
+        Bitmap bitmap = createRandomBitmap(SIZE, SIZE);
+        ByteBuffer expected = allocate(SIZE * SIZE * 3);
+        TensorFiller.uint8(SIZE, SIZE).fill(pixels(bitmap), expected);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            TensorFiller filler = TensorFiller.uint8(SIZE, SIZE);
+            filler.setRowParallelism(executor, 4);
+            ByteBuffer actual = allocate(SIZE * SIZE * 3);
+            filler.fill(pixels(bitmap), actual);
+            Assert.assertTrue(java.util.Arrays.equals(contents(expected), contents(actual)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Compares the bulk fill with the per-byte conversion. Results are written to logcat.
+     */
+    @Test
+    public void benchmarkAgainstPerByteConversion() {
+        Bitmap bitmap = createRandomBitmap(SIZE, SIZE);
+        ByteBuffer buffer = allocate(SIZE * SIZE * 3);
+        int[] intValues = new int[SIZE * SIZE];
+        TensorFiller filler = TensorFiller.uint8(SIZE, SIZE);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            TensorFlowHelper.convertBitmapToByteBuffer(bitmap, intValues, buffer);
+        }
+        long perByteNanos = (SystemClock.elapsedRealtimeNanos() - start) / BENCHMARK_ITERATIONS;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            buffer.rewind();
+            bitmap.getPixels(intValues, 0, SIZE, 0, 0, SIZE, SIZE);
+            filler.fill(intValues, buffer);
+        }
+        long bulkNanos = (SystemClock.elapsedRealtimeNanos() - start) / BENCHMARK_ITERATIONS;
+
+        Log.i(TAG, "convertBitmapToByteBuffer: " + perByteNanos / 1000 + " us/frame, "
+                + "TensorFiller: " + bulkNanos / 1000 + " us/frame");
+    }
+}
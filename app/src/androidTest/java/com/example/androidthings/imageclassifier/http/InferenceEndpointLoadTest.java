@@ -0,0 +1,191 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.http;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.example.androidthings.imageclassifier.classifier.ModelDescriptor;
+import com.example.androidthings.imageclassifier.classifier.TensorFlowImageClassifier;
+import com.example.androidthings.imageclassifier.metrics.LatencyHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the inference endpoint on localhost with the packaged model, and sends it uploads from
+ * several clients at once.
+ */
+public class InferenceEndpointLoadTest {
+    private static final String TAG = "InferenceEndpointLoad";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ModelDescriptor MODEL = ModelDescriptor.MOBILENET_QUANT_V1_224;
+    private static final int WORKERS = 2;
+    private static final int QUEUE_SIZE = 4;
+    private static final int MAX_BODY_BYTES = 512 * 1024;
+
+    /** No more clients than the workers and queue take, so none of them should get a 503. */
+    private static final int CLIENTS = 4;
+    private static final int REQUESTS_PER_CLIENT = 25;
+
+    private InferenceEndpoint mEndpoint;
+    private byte[] mJpeg;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mEndpoint = new InferenceEndpoint(TensorFlowImageClassifier.loadModel(context, MODEL),
+                TensorFlowImageClassifier.loadLabels(context, MODEL), MODEL,
+                InetAddress.getLoopbackAddress(), 0, WORKERS, QUEUE_SIZE, MAX_BODY_BYTES);
+        mEndpoint.start();
+        mJpeg = createRandomJpeg(320, 240);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mEndpoint.close();
+    }
+
+    private static byte[] createRandomJpeg(int width, int height) {
+        int[] pixels = new int[width * height];
+        Random random = new Random(42);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, jpeg);
+        return jpeg.toByteArray();
+    }
+
+    /** Status and body of a response. */
+    private static class Reply {
+        final int status;
+        final String body;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private Reply post(String contentType, byte[] body) throws IOException {
+        URL url = new URL("http", "127.0.0.1", mEndpoint.getPort(), InferenceEndpoint.PATH);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", contentType);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            final int status = connection.getResponseCode();
+            InputStream in = status < 400
+                    ? connection.getInputStream() : connection.getErrorStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            if (in != null) {
+                byte[] chunk = new byte[4096];
+                int count;
+                while ((count = in.read(chunk)) != -1) {
+                    response.write(chunk, 0, count);
+                }
+                in.close();
+            }
+            return new Reply(status, new String(response.toByteArray(), UTF_8));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Tests that concurrent uploads are all classified, and reports the throughput and latency
+     * seen by the clients.
+     */
+    @Test
+    public void testConcurrentUploads() throws Exception {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        final long start = System.nanoTime();
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                results.add(clients.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        int ok = 0;
+                        for (int j = 0; j < REQUESTS_PER_CLIENT; j++) {
+                            final long requestStart = System.nanoTime();
+                            Reply reply = post("image/jpeg", mJpeg);
+                            latencies.record(System.nanoTime() - requestStart);
+                            if (reply.status == 200 && reply.body.contains("\"results\":[{")) {
+                                ok++;
+                            }
+                        }
+                        return ok;
+                    }
+                }));
+            }
+            int ok = 0;
+            for (Future<Integer> result : results) {
+                ok += result.get(5, TimeUnit.MINUTES);
+            }
+            Assert.assertEquals(CLIENTS * REQUESTS_PER_CLIENT, ok);
+        } finally {
+            clients.shutdownNow();
+        }
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        LatencyHistogram.Snapshot snapshot = latencies.snapshot();
+        Log.i(TAG, String.format(Locale.US,
+                "%d uploads from %d clients in %.1f s, %.1f images/s, p50 %.1f ms, p99 %.1f ms",
+                snapshot.getCount(), CLIENTS, seconds, snapshot.getCount() / seconds,
+                snapshot.getQuantileMicros(0.5) / 1000f, snapshot.getQuantileMicros(0.99) / 1000f));
+    }
+
+    /**
+     * Tests that uploads the endpoint cannot classify are answered with an error.
+     */
+    @Test
+    public void testRejectsInvalidUploads() throws IOException {
+        Assert.assertEquals(415, post("text/plain", mJpeg).status);
+        Assert.assertEquals(400, post("image/png", "not an image".getBytes(UTF_8)).status);
+        Assert.assertEquals(413, post("image/jpeg", new byte[MAX_BODY_BYTES + 1]).status);
+    }
+}
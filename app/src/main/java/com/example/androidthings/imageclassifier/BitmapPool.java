@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+
+/**
+ * A fixed-capacity pool of mutable bitmaps sharing the same size and config, so that frames can
+ * be processed without allocating new bitmaps once the pool is warm. Safe to use from several
+ * threads.
+ */
+public class BitmapPool {
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap.Config mConfig;
+    private final int mCapacity;
+    private final ArrayDeque<Bitmap> mFree;
+
+    private long mHits;
+    private long mMisses;
+
+    public BitmapPool(int width, int height, Bitmap.Config config, int capacity) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mCapacity = capacity;
+        mFree = new ArrayDeque<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mFree.push(Bitmap.createBitmap(width, height, config));
+        }
+    }
+
+    /**
+     * @return a bitmap from the pool, or a newly allocated one if all of them are in use.
+     */
+    public synchronized Bitmap acquire() {
+        Bitmap bitmap = mFree.poll();
+        if (bitmap != null) {
+            mHits++;
+            return bitmap;
+        }
+        mMisses++;
+        return Bitmap.createBitmap(mWidth, mHeight, mConfig);
+    }
+
+    /**
+     * Give a bitmap back to the pool. Bitmaps that do not match the pool, or that would exceed its
+     * capacity, are left to the garbage collector.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || mFree.size() >= mCapacity
+                || bitmap.getWidth() != mWidth || bitmap.getHeight() != mHeight
+                || bitmap.getConfig() != mConfig) {
+            return;
+        }
+        mFree.push(bitmap);
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+}
@@ -27,26 +27,77 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Pair;
+import android.util.Range;
 import android.util.Size;
+import android.view.Surface;
+import com.example.androidthings.imageclassifier.metrics.PipelineMetrics;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 public class CameraHandler {
     private static final String TAG = CameraHandler.class.getSimpleName();
 
-    private static final int MAX_IMAGES = 1;
+    // Streaming needs spare buffers so the camera can fill one while others are queued or processed
+    private static final int MAX_IMAGES = 3;
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCaptureSession;
     private boolean initialized;
 
+    /**
+     * True while a repeating request is feeding frames into the {@link ImageReader}.
+     */
+    private volatile boolean mStreaming;
+
+    /**
+     * Minimum time between two frames delivered to the listener while streaming.
+     */
+    private volatile long mFrameIntervalMillis;
+    private long mLastFrameDeliveredMillis;
+
+    private ImageReader.OnImageAvailableListener mImageAvailableListener;
+
+    /**
+     * True when the capture session is kept open between shots, with a low-rate preview running
+     * so that auto-exposure stays converged.
+     */
+    private volatile boolean mWarmSession;
+    private boolean mCapturePending;
+    private boolean mSessionConfiguring;
+
+    /**
+     * Receives the low-rate preview frames of a warm session. Frames are discarded.
+     */
+    private ImageReader mPreviewReader;
+    private Size mPreviewSize;
+    private Range<Integer> mPreviewFpsRange;
+    private Handler mBackgroundHandler;
+
+    /**
+     * Time of the last shutter press, or 0 once the resulting image has been delivered.
+     */
+    private long mShutterPressedMillis;
+    private boolean mShutterPressedWarm;
+    private final long[] mShutterLatencyTotalMillis = new long[2];
+    private final int[] mShutterLatencyCount = new int[2];
+
     private Size mImageDimensions;
 
+    /**
+     * True when image timestamps use the {@link SystemClock#elapsedRealtimeNanos()} time base,
+     * so the capture latency can be measured.
+     */
+    private boolean mRealtimeTimestamps;
+
     /**
      * An {@link ImageReader} that handles still image capture.
      */
@@ -64,11 +115,25 @@ public class CameraHandler {
         return InstanceHolder.mCamera;
     }
 
+    /**
+     * Initialize the camera device, capturing JPEG images
+     */
+    public void initializeCamera(Context context, Handler backgroundHandler, Size minSize,
+                                 ImageReader.OnImageAvailableListener imageAvailableListener)
+        throws CameraAccessException {
+        initializeCamera(context, backgroundHandler, minSize, ImageFormat.JPEG,
+                imageAvailableListener);
+    }
+
     /**
      * Initialize the camera device
+     *
+     * @param imageFormat format of the captured images, either {@link ImageFormat#JPEG} or
+     *                    {@link ImageFormat#YUV_420_888}
      */
     @SuppressLint("MissingPermission")
     public void initializeCamera(Context context, Handler backgroundHandler, Size minSize,
+                                 int imageFormat,
                                  ImageReader.OnImageAvailableListener imageAvailableListener)
         throws CameraAccessException {
         if (initialized) {
@@ -85,18 +150,35 @@ public class CameraHandler {
         StreamConfigurationMap map = characteristics.get(
             CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
 
-        Size bestSize = getBestCameraSize(map.getOutputSizes(ImageFormat.JPEG), minSize);
+        Size bestSize = getBestCameraSize(map.getOutputSizes(imageFormat), minSize);
         if (bestSize == null) {
             throw new RuntimeException("We could not find a camera resolution that is larger than "
                     + minSize.getWidth() + "x" + minSize.getHeight());
         }
 
         mImageReader = ImageReader.newInstance(bestSize.getWidth(), bestSize.getHeight(),
-            ImageFormat.JPEG, MAX_IMAGES);
+            imageFormat, MAX_IMAGES);
         mImageDimensions = bestSize;
         Log.d(TAG, "Will capture photos that are " + mImageDimensions.getWidth() + " x " +
             mImageDimensions.getHeight());
-        mImageReader.setOnImageAvailableListener(imageAvailableListener, backgroundHandler);
+        mImageAvailableListener = imageAvailableListener;
+        mImageReader.setOnImageAvailableListener(mRateLimitingListener, backgroundHandler);
+        mBackgroundHandler = backgroundHandler;
+
+        Integer timestampSource =
+                characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        mRealtimeTimestamps = timestampSource != null && timestampSource
+                == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        if (!mRealtimeTimestamps) {
+            Log.i(TAG, "Camera timestamps are not comparable with the system clock, capture"
+                    + " latency will not be recorded");
+        }
+
+        // The preview of a warm session only feeds AE/AF, so use the smallest size and frame rate
+        mPreviewSize = Collections.min(Arrays.asList(map.getOutputSizes(ImageFormat.YUV_420_888)),
+                new CompareSizesByArea());
+        mPreviewFpsRange = getLowestFpsRange(characteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
 
         // Open the camera resource
         try {
@@ -106,6 +188,17 @@ public class CameraHandler {
         }
     }
 
+    /**
+     * Records the time from the start of exposure of {@code image} to now, if the camera
+     * timestamps allow it.
+     */
+    public void recordCaptureLatency(Image image) {
+        if (mRealtimeTimestamps) {
+            PipelineMetrics.getInstance().record(PipelineMetrics.Stage.CAPTURE,
+                    SystemClock.elapsedRealtimeNanos() - image.getTimestamp());
+        }
+    }
+
     public Size getImageDimensions() {
         return mImageDimensions;
     }
@@ -118,13 +211,106 @@ public class CameraHandler {
             Log.w(TAG, "Cannot capture image. Camera not initialized.");
             return;
         }
-        // Create a CameraCaptureSession for capturing still images.
+        if (mStreaming) {
+            Log.w(TAG, "Cannot capture image. Camera is streaming.");
+            return;
+        }
+        mShutterPressedMillis = SystemClock.uptimeMillis();
+        mShutterPressedWarm = mWarmSession && mCaptureSession != null;
+        if (mShutterPressedWarm) {
+            // The session is already running, a single request is enough
+            triggerImageCapture();
+            return;
+        }
+        mCapturePending = true;
+        if (!mSessionConfiguring) {
+            createCaptureSession();
+        }
+    }
+
+    /**
+     * Keep the capture session open between shots, so a shutter press only has to issue a single
+     * capture request. A low-rate preview keeps auto-exposure converged in the meantime.
+     */
+    public void setWarmSessionEnabled(boolean enabled) {
+        if (mWarmSession == enabled) {
+            return;
+        }
+        mWarmSession = enabled;
+        if (mStreaming) {
+            // Streaming keeps its own session open, it will be replaced when streaming stops
+            return;
+        }
+        closeCaptureSession();
+        if (enabled) {
+            if (mCameraDevice == null) {
+                Log.d(TAG, "Camera not opened yet, warm session will start when it is.");
+                return;
+            }
+            createCaptureSession();
+        } else if (mPreviewReader != null) {
+            mPreviewReader.close();
+            mPreviewReader = null;
+        }
+    }
+
+    public boolean isWarmSessionEnabled() {
+        return mWarmSession;
+    }
+
+    /**
+     * Start delivering frames continuously to the image listener, at most one frame every
+     * {@code frameIntervalMillis}. Frames arriving faster than that are dropped.
+     */
+    public void startStreaming(long frameIntervalMillis) {
+        mFrameIntervalMillis = frameIntervalMillis;
+        mLastFrameDeliveredMillis = 0;
+        mStreaming = true;
+        if (mCameraDevice == null) {
+            // The session will be created as soon as the camera is opened
+            Log.d(TAG, "Camera not opened yet, streaming will start when it is.");
+            return;
+        }
+        closeCaptureSession();
+        createCaptureSession();
+    }
+
+    /**
+     * Stop the repeating request and go back to single-shot captures.
+     */
+    public void stopStreaming() {
+        if (!mStreaming) {
+            return;
+        }
+        mStreaming = false;
+        closeCaptureSession();
+        if (mWarmSession && mCameraDevice != null) {
+            createCaptureSession();
+        }
+    }
+
+    public boolean isStreaming() {
+        return mStreaming;
+    }
+
+    private void createCaptureSession() {
+        List<Surface> outputs = new ArrayList<>(2);
+        outputs.add(mImageReader.getSurface());
+        if (mWarmSession && !mStreaming) {
+            if (mPreviewReader == null) {
+                mPreviewReader = ImageReader.newInstance(mPreviewSize.getWidth(),
+                        mPreviewSize.getHeight(), ImageFormat.YUV_420_888, MAX_IMAGES);
+                mPreviewReader.setOnImageAvailableListener(mDiscardingListener,
+                        mBackgroundHandler);
+            }
+            outputs.add(mPreviewReader.getSurface());
+        }
+        // Create a CameraCaptureSession for capturing images.
         try {
-            mCameraDevice.createCaptureSession(
-                    Collections.singletonList(mImageReader.getSurface()),
-                    mSessionCallback,
-                    null);
+            mSessionConfiguring = true;
+            mCameraDevice.createCaptureSession(outputs, mSessionCallback, null);
         } catch (CameraAccessException cae) {
+            mSessionConfiguring = false;
             Log.e(TAG, "Cannot create camera capture session", cae);
         }
     }
@@ -139,12 +325,48 @@ public class CameraHandler {
             captureBuilder.addTarget(mImageReader.getSurface());
             captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
             Log.d(TAG, "Capture request created.");
+            mCapturePending = false;
             mCaptureSession.capture(captureBuilder.build(), mCaptureCallback, null);
         } catch (CameraAccessException cae) {
             Log.e(TAG, "Cannot trigger a capture request");
         }
     }
 
+    /**
+     * Start a repeating request that keeps filling the {@link ImageReader}.
+     */
+    private void startRepeatingCapture() {
+        try {
+            final CaptureRequest.Builder captureBuilder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            captureBuilder.addTarget(mImageReader.getSurface());
+            captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+            Log.d(TAG, "Repeating request created.");
+            mCaptureSession.setRepeatingRequest(captureBuilder.build(), null, null);
+        } catch (CameraAccessException cae) {
+            Log.e(TAG, "Cannot start a repeating request", cae);
+        }
+    }
+
+    /**
+     * Start the low-rate preview that keeps AE/AF converged while a warm session is idle.
+     */
+    private void startWarmPreview() {
+        try {
+            final CaptureRequest.Builder previewBuilder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            previewBuilder.addTarget(mPreviewReader.getSurface());
+            previewBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+            if (mPreviewFpsRange != null) {
+                previewBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mPreviewFpsRange);
+            }
+            Log.d(TAG, "Warm preview request created.");
+            mCaptureSession.setRepeatingRequest(previewBuilder.build(), null, null);
+        } catch (CameraAccessException cae) {
+            Log.e(TAG, "Cannot start the warm preview", cae);
+        }
+    }
+
     private void closeCaptureSession() {
         if (mCaptureSession != null) {
             try {
@@ -161,11 +383,16 @@ public class CameraHandler {
      */
     public void shutDown() {
         try {
+            mStreaming = false;
             closeCaptureSession();
             if (mCameraDevice != null) {
                 mCameraDevice.close();
             }
             mImageReader.close();
+            if (mPreviewReader != null) {
+                mPreviewReader.close();
+                mPreviewReader = null;
+            }
         } finally {
             initialized = false;
         }
@@ -227,6 +454,9 @@ public class CameraHandler {
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             Log.d(TAG, "Opened camera.");
             mCameraDevice = cameraDevice;
+            if (mStreaming || mWarmSession) {
+                createCaptureSession();
+            }
         }
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
@@ -254,16 +484,28 @@ public class CameraHandler {
             new CameraCaptureSession.StateCallback() {
                 @Override
                 public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                    mSessionConfiguring = false;
                     // The camera is already closed
                     if (mCameraDevice == null) {
                         return;
                     }
                     // When the session is ready, we start capture.
                     mCaptureSession = cameraCaptureSession;
-                    triggerImageCapture();
+                    if (mStreaming) {
+                        startRepeatingCapture();
+                        return;
+                    }
+                    if (mWarmSession) {
+                        startWarmPreview();
+                    }
+                    if (mCapturePending) {
+                        triggerImageCapture();
+                    }
                 }
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                    mSessionConfiguring = false;
+                    mCapturePending = false;
                     Log.w(TAG, "Failed to configure camera");
                 }
             };
@@ -283,12 +525,82 @@ public class CameraHandler {
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
+                    if (mStreaming || mWarmSession) {
+                        return;
+                    }
                     session.close();
                     mCaptureSession = null;
                     Log.d(TAG, "CaptureSession closed");
                 }
             };
 
+    /**
+     * Forwards images to the real listener, dropping the ones that arrive before the configured
+     * frame interval has elapsed while streaming.
+     */
+    private final ImageReader.OnImageAvailableListener mRateLimitingListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    if (mStreaming) {
+                        long now = SystemClock.uptimeMillis();
+                        if (now - mLastFrameDeliveredMillis < mFrameIntervalMillis) {
+                            Image image = reader.acquireLatestImage();
+                            if (image != null) {
+                                image.close();
+                            }
+                            return;
+                        }
+                        mLastFrameDeliveredMillis = now;
+                    } else if (mShutterPressedMillis != 0) {
+                        logShutterLatency(SystemClock.uptimeMillis() - mShutterPressedMillis);
+                        mShutterPressedMillis = 0;
+                    }
+                    PipelineMetrics.getInstance().increment(PipelineMetrics.Counter.FRAMES_IN);
+                    mImageAvailableListener.onImageAvailable(reader);
+                }
+            };
+
+    /**
+     * Drops the preview frames of a warm session, which are only there for AE/AF convergence.
+     */
+    private final ImageReader.OnImageAvailableListener mDiscardingListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image = reader.acquireLatestImage();
+                    if (image != null) {
+                        image.close();
+                    }
+                }
+            };
+
+    private void logShutterLatency(long latencyMillis) {
+        int path = mShutterPressedWarm ? 1 : 0;
+        mShutterLatencyTotalMillis[path] += latencyMillis;
+        mShutterLatencyCount[path]++;
+        Log.i(TAG, "Shutter-to-image latency (" + (mShutterPressedWarm ? "warm" : "cold")
+                + " session): " + latencyMillis + " ms, average "
+                + mShutterLatencyTotalMillis[path] / mShutterLatencyCount[path] + " ms over "
+                + mShutterLatencyCount[path] + " shots");
+    }
+
+    /**
+     * Pick the range with the lowest maximum frame rate, to keep the warm preview cheap.
+     */
+    static Range<Integer> getLowestFpsRange(Range<Integer>[] availableRanges) {
+        if (availableRanges == null || availableRanges.length == 0) {
+            return null;
+        }
+        Range<Integer> lowest = availableRanges[0];
+        for (Range<Integer> range : availableRanges) {
+            if (range.getUpper() < lowest.getUpper()) {
+                lowest = range;
+            }
+        }
+        return lowest;
+    }
+
     static Size getBestCameraSize(Size[] availableCameraResolutions, Size minSize) {
         // This should select the closest size that is not too small
         Arrays.sort(availableCameraResolutions, new CompareSizesByArea()); // Sort by smallest first
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.androidthings.imageclassifier.classifier.ModelDescriptor;
+import com.example.androidthings.imageclassifier.classifier.Recognition;
+import com.example.androidthings.imageclassifier.classifier.TensorFlowImageClassifier;
+import com.example.androidthings.imageclassifier.metrics.FrameTrace;
+import com.example.androidthings.imageclassifier.metrics.PipelineMetrics;
+import com.example.androidthings.imageclassifier.pipeline.BoundedQueue;
+import com.example.androidthings.imageclassifier.pipeline.ClassificationScheduler;
+import com.example.androidthings.imageclassifier.pipeline.PipelineStage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs preprocessing, inference and publishing of camera frames on separate threads, connected
+ * by bounded queues. While frame N is being classified, frame N+1 is already being
+ * preprocessed.
+ *
+ * <p>Inference goes through a {@link ClassificationScheduler}: streamed frames are background
+ * requests that are dropped once stale, while a frame requested with {@link #requestUserShot()}
+ * jumps ahead of them.
+ */
+public class ClassificationPipeline {
+    private static final String TAG = "ClassificationPipeline";
+
+    private static final long METRICS_LOG_INTERVAL_MS = 5000;
+
+    /**
+     * Receives classified frames on the publishing thread.
+     */
+    public interface Publisher {
+        /**
+         * @param bitmap        the preprocessed frame, or null when capturing YUV. Must be given
+         *                      back with {@link ImagePreprocessor#releaseBitmap(Bitmap)} once
+         *                      shown.
+         * @param userInitiated true for the frame captured after {@link #requestUserShot()}.
+         */
+        void publish(long frameId, Bitmap bitmap, Collection<Recognition> results,
+                     boolean userInitiated);
+
+        /**
+         * The frame captured after {@link #requestUserShot()} was dropped before its results
+         * could be published, for example because it missed its deadline.
+         */
+        void onUserShotDropped(long frameId);
+    }
+
+    /**
+     * A frame moving through the stages.
+     */
+    private static class Frame {
+        final long id;
+        final long captureTimeMillis;
+        final boolean userInitiated;
+        Bitmap bitmap;
+        ByteBuffer tensor;
+        Collection<Recognition> results;
+
+        Frame(long id, long captureTimeMillis, boolean userInitiated) {
+            this.id = id;
+            this.captureTimeMillis = captureTimeMillis;
+            this.userInitiated = userInitiated;
+        }
+    }
+
+    private final ImagePreprocessor mPreprocessor;
+    private final ClassificationScheduler mScheduler;
+    private final boolean mYuvInput;
+    private final long mBackgroundDeadlineMillis;
+    private final long mUserDeadlineMillis;
+    private final Publisher mPublisher;
+
+    private final BoundedQueue<Image> mCapturedQueue;
+    private final BoundedQueue<Frame> mClassifiedQueue;
+    private final PipelineStage<Image, Frame> mPreprocessStage;
+    private final PipelineStage<Frame, Void> mPublishStage;
+
+    /** Model input buffers for YUV frames, one per frame in flight. */
+    private final BlockingQueue<ByteBuffer> mFreeTensors;
+
+    private final AtomicBoolean mUserShotRequested = new AtomicBoolean();
+    private SceneChangeGate mSceneChangeGate;
+    private long mLastMetricsLogMillis;
+    private final PipelineMetrics mMetrics = PipelineMetrics.getInstance();
+
+    /**
+     * @param model                    model the scheduler runs, which sizes the input tensors.
+     * @param scheduler                runs inference. It is not started or stopped by the
+     *                                 pipeline, so it can be shared with other clients.
+     * @param queueCapacity            number of frames each queue holds between two stages.
+     * @param overflowPolicy           what to do with frames arriving while a queue is full.
+     *                                 {@link BoundedQueue.OverflowPolicy#BLOCK} is refused, as
+     *                                 frames are submitted on the camera thread, which must
+     *                                 never wait for the pipeline.
+     * @param backgroundDeadlineMillis time after capture after which a streamed frame is stale.
+     * @param userDeadlineMillis       time after capture within which a user shot must be
+     *                                 classified.
+     */
+    public ClassificationPipeline(ImagePreprocessor preprocessor,
+                                  ModelDescriptor model,
+                                  ClassificationScheduler scheduler, boolean yuvInput,
+                                  int queueCapacity, BoundedQueue.OverflowPolicy overflowPolicy,
+                                  long backgroundDeadlineMillis, long userDeadlineMillis,
+                                  Publisher publisher) {
+        if (overflowPolicy == BoundedQueue.OverflowPolicy.BLOCK) {
+            throw new IllegalArgumentException("Captured frames cannot block the camera thread");
+        }
+        mPreprocessor = preprocessor;
+        mScheduler = scheduler;
+        mYuvInput = yuvInput;
+        mBackgroundDeadlineMillis = backgroundDeadlineMillis;
+        mUserDeadlineMillis = userDeadlineMillis;
+        mPublisher = publisher;
+
+        mCapturedQueue = new BoundedQueue<>("captured", queueCapacity, overflowPolicy,
+                new BoundedQueue.DropListener<Image>() {
+                    @Override
+                    public void onDropped(Image image) {
+                        mMetrics.increment(PipelineMetrics.Counter.FRAMES_DROPPED);
+                        image.close();
+                    }
+                });
+        mClassifiedQueue = new BoundedQueue<>("classified", queueCapacity, overflowPolicy,
+                new BoundedQueue.DropListener<Frame>() {
+                    @Override
+                    public void onDropped(Frame frame) {
+                        dropFrame(frame);
+                    }
+                });
+
+        // A tensor can wait in the scheduler, be classified, or be written by the preprocessing
+        // stage. The scheduler holds up to queueCapacity background frames and one user shot.
+        int framesInFlight = queueCapacity + 3;
+        mFreeTensors = new ArrayBlockingQueue<>(framesInFlight);
+        if (yuvInput) {
+            int tensorSize = model.getInputSizeInBytes();
+            for (int i = 0; i < framesInFlight; i++) {
+                ByteBuffer tensor = ByteBuffer.allocateDirect(tensorSize);
+                tensor.order(ByteOrder.nativeOrder());
+                mFreeTensors.add(tensor);
+            }
+        }
+
+        mPreprocessStage = new PipelineStage<>("PreprocessStage", mCapturedQueue,
+                new PipelineStage.Processor<Image, Frame>() {
+                    @Override
+                    public Frame process(Image image) {
+                        Frame frame = preprocess(image);
+                        if (frame != null) {
+                            scheduleInference(frame);
+                        }
+                        // Classified frames reach the next queue through the scheduler
+                        return null;
+                    }
+                }, null);
+        mPublishStage = new PipelineStage<>("PublishStage", mClassifiedQueue,
+                new PipelineStage.Processor<Frame, Void>() {
+                    @Override
+                    public Void process(Frame frame) {
+                        publish(frame);
+                        return null;
+                    }
+                }, null);
+    }
+
+    public void start() {
+        mPublishStage.start();
+        mPreprocessStage.start();
+    }
+
+    /**
+     * Stop all stages and release the frames still queued.
+     */
+    public void stop() {
+        mPreprocessStage.stop();
+        mPublishStage.stop();
+        mCapturedQueue.clear();
+        mClassifiedQueue.clear();
+    }
+
+    /**
+     * Hand a captured image to the pipeline, which takes care of closing it.
+     *
+     * @return false if the image was dropped because the pipeline is full.
+     */
+    public boolean submit(Image image) {
+        try {
+            return mCapturedQueue.offer(image);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            image.close();
+            return false;
+        }
+    }
+
+    /**
+     * Only classify streamed frames that pass {@code gate}. User shots are always classified.
+     * Must be called before {@link #start()}.
+     */
+    public void setSceneChangeGate(SceneChangeGate gate) {
+        mSceneChangeGate = gate;
+    }
+
+    /**
+     * Classify the next captured frame as a user-initiated request.
+     */
+    public void requestUserShot() {
+        mUserShotRequested.set(true);
+    }
+
+    private Frame preprocess(Image image) {
+        boolean userInitiated = mUserShotRequested.getAndSet(false);
+        final long captureMillis = SystemClock.uptimeMillis();
+        if (mYuvInput && mSceneChangeGate != null && !userInitiated) {
+            // Gate before the conversion, which is the expensive part
+            mPreprocessor.sampleLuma(image, mSceneChangeGate);
+            if (!mSceneChangeGate.shouldClassify(captureMillis)) {
+                image.close();
+                return null;
+            }
+        }
+        Frame frame = new Frame(FrameTrace.startFrame(), captureMillis, userInitiated);
+        if (mYuvInput) {
+            try {
+                frame.tensor = mFreeTensors.take();
+            } catch (InterruptedException e) {
+                image.close();
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            try {
+                mPreprocessor.preprocessYuvImage(image, frame.tensor);
+            } catch (RuntimeException e) {
+                // The stage closes the image, but the tensor is only known here
+                releaseFrame(frame);
+                throw e;
+            }
+        } else {
+            frame.bitmap = mPreprocessor.preprocessImage(image);
+            if (frame.bitmap == null) {
+                // Could not be decoded
+                dropFrame(frame);
+                return null;
+            }
+            if (mSceneChangeGate != null && !userInitiated) {
+                mPreprocessor.sampleLuma(frame.bitmap, mSceneChangeGate);
+                if (!mSceneChangeGate.shouldClassify(captureMillis)) {
+                    releaseFrame(frame);
+                    return null;
+                }
+            }
+        }
+        return frame;
+    }
+
+    private void scheduleInference(final Frame frame) {
+        ClassificationScheduler.Priority priority = frame.userInitiated
+                ? ClassificationScheduler.Priority.USER_INITIATED
+                : ClassificationScheduler.Priority.BACKGROUND;
+        long deadline = frame.captureTimeMillis
+                + (frame.userInitiated ? mUserDeadlineMillis : mBackgroundDeadlineMillis);
+        mScheduler.submit(priority, deadline, new ClassificationScheduler.Job() {
+            @Override
+            public Collection<Recognition> run(TensorFlowImageClassifier classifier) {
+                FrameTrace.setFrame(frame.id);
+                return frame.tensor != null
+                        ? classifier.doRecognizeInput(frame.tensor)
+                        : classifier.doRecognize(frame.bitmap);
+            }
+        }, new ClassificationScheduler.Callback() {
+            @Override
+            public void onClassified(Collection<Recognition> results) {
+                frame.results = results;
+                if (frame.tensor != null) {
+                    mFreeTensors.add(frame.tensor);
+                    frame.tensor = null;
+                }
+                try {
+                    mClassifiedQueue.offer(frame);
+                } catch (InterruptedException e) {
+                    mClassifiedQueue.discard(frame);
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onDropped() {
+                dropFrame(frame);
+            }
+        });
+    }
+
+    private void publish(Frame frame) {
+        FrameTrace.setFrame(frame.id);
+        // The bitmap belongs to the publisher from here, even if it throws
+        final Bitmap bitmap = frame.bitmap;
+        frame.bitmap = null;
+        mPublisher.publish(frame.id, bitmap, frame.results, frame.userInitiated);
+
+        long now = SystemClock.uptimeMillis();
+        if (now - mLastMetricsLogMillis >= METRICS_LOG_INTERVAL_MS) {
+            mLastMetricsLogMillis = now;
+            Log.i(TAG, getMetricsSummary());
+        }
+    }
+
+    private void dropFrame(Frame frame) {
+        mMetrics.increment(PipelineMetrics.Counter.FRAMES_DROPPED);
+        releaseFrame(frame);
+        if (frame.userInitiated) {
+            Log.w(TAG, "User shot " + frame.id + " dropped");
+            mPublisher.onUserShotDropped(frame.id);
+        }
+    }
+
+    private void releaseFrame(Frame frame) {
+        if (frame.tensor != null) {
+            mFreeTensors.add(frame.tensor);
+            frame.tensor = null;
+        }
+        if (frame.bitmap != null) {
+            mPreprocessor.releaseBitmap(frame.bitmap);
+            frame.bitmap = null;
+        }
+    }
+
+    /**
+     * @return the depth of each queue and the work done by each stage.
+     */
+    public String getMetricsSummary() {
+        return mCapturedQueue + "; " + mScheduler + "; " + mClassifiedQueue + "; "
+                + mPreprocessStage + "; " + mPublishStage
+                + (mSceneChangeGate != null ? "; " + mSceneChangeGate : "");
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Counts processed frames and periodically logs the sustained frame rate.
+ */
+public class FrameRateMonitor {
+    private static final String TAG = "FrameRateMonitor";
+
+    private final String mName;
+    private final long mReportIntervalMillis;
+
+    private long mWindowStartMillis;
+    private int mFramesInWindow;
+    private float mLastFramesPerSecond;
+
+    public FrameRateMonitor(String name, long reportIntervalMillis) {
+        mName = name;
+        mReportIntervalMillis = reportIntervalMillis;
+    }
+
+    /**
+     * Record one processed frame. Logs the frame rate once per reporting interval.
+     */
+    public void onFrame() {
+        long now = SystemClock.uptimeMillis();
+        if (mWindowStartMillis == 0) {
+            mWindowStartMillis = now;
+        }
+        mFramesInWindow++;
+        long elapsed = now - mWindowStartMillis;
+        if (elapsed >= mReportIntervalMillis) {
+            mLastFramesPerSecond = mFramesInWindow * 1000f / elapsed;
+            Log.i(TAG, String.format(Locale.US, "%s: %.2f frames/sec (%d frames in %d ms)",
+                    mName, mLastFramesPerSecond, mFramesInWindow, elapsed));
+            mWindowStartMillis = now;
+            mFramesInWindow = 0;
+        }
+    }
+
+    /**
+     * @return the frame rate measured over the last complete reporting interval.
+     */
+    public float getFramesPerSecond() {
+        return mLastFramesPerSecond;
+    }
+
+    public void reset() {
+        mWindowStartMillis = 0;
+        mFramesInWindow = 0;
+        mLastFramesPerSecond = 0;
+    }
+}
@@ -15,16 +15,23 @@
  */
 package com.example.androidthings.imageclassifier;
 
+import android.Manifest;
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.UtteranceProgressListener;
 import android.util.Log;
@@ -34,32 +41,157 @@ import android.view.View;
 import android.view.WindowManager;
 import android.widget.ImageView;
 import android.widget.TextView;
+import com.example.androidthings.imageclassifier.classifier.ModelBundle;
+import com.example.androidthings.imageclassifier.classifier.ModelDescriptor;
 import com.example.androidthings.imageclassifier.classifier.Recognition;
+import com.example.androidthings.imageclassifier.classifier.ResultCache;
+import com.example.androidthings.imageclassifier.classifier.SwappableClassifier;
+import com.example.androidthings.imageclassifier.classifier.TensorFlowHelper;
 import com.example.androidthings.imageclassifier.classifier.TensorFlowImageClassifier;
+import com.example.androidthings.imageclassifier.http.InferenceEndpoint;
+import com.example.androidthings.imageclassifier.http.LocalHttpServer;
+import com.example.androidthings.imageclassifier.metrics.FrameTrace;
+import com.example.androidthings.imageclassifier.metrics.PipelineMetrics;
+import com.example.androidthings.imageclassifier.metrics.TraceRecorder;
+import com.example.androidthings.imageclassifier.pipeline.BoundedQueue;
+import com.example.androidthings.imageclassifier.pipeline.ClassificationScheduler;
 import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.button.ButtonInputDriver;
 import com.google.android.things.pio.Gpio;
 import com.google.android.things.pio.PeripheralManager;
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ImageClassifierActivity extends Activity implements ImageReader.OnImageAvailableListener {
     private static final String TAG = "ImageClassifierActivity";
 
-    // Matches the images used to train the TensorFlow model
-    private static final Size MODEL_IMAGE_SIZE = new Size(224, 224);
+    /* The model to run. Float models need their .tflite file in the assets, for example
+       ModelDescriptor.float32("mobilenet_v1_1.0_224.tflite", "labels.txt", 224, 224, 127.5f,
+       127.5f) */
+    private static final ModelDescriptor MODEL = ModelDescriptor.MOBILENET_QUANT_V1_224;
+
+    /* Asset name of a model bundle to run instead of MODEL, with its own labels and input
+       metadata, or null. See ModelBundleTool to build one. */
+    private static final String MODEL_BUNDLE = null;
 
     /* Key code used by GPIO button to trigger image capture */
     private static final int SHUTTER_KEYCODE = KeyEvent.KEYCODE_CAMERA;
 
+    /* Classify camera frames continuously instead of waiting for a shutter press */
+    private static final boolean CONTINUOUS_MODE = false;
+
+    /* Minimum time between two classified frames in continuous mode */
+    private static final long CONTINUOUS_FRAME_INTERVAL_MS = 250;
+
+    /* Keep the capture session open between shots to reduce shutter-to-result latency */
+    private static final boolean WARM_CAPTURE_SESSION = false;
+
+    /* Capture YUV frames and convert them straight into the model input, skipping JPEG */
+    private static final boolean USE_YUV_CAPTURE = false;
+
+    /* Measure interpreter configurations on first use and keep the fastest for this device */
+    private static final boolean AUTO_TUNE_INTERPRETER = false;
+
+    /* In continuous mode, preprocess, classify and publish frames on separate threads */
+    private static final boolean USE_PIPELINE = false;
+
+    /*
+     * Frames held between two pipeline stages, and what happens when a stage falls behind.
+     * Frames arrive on the camera thread, so the pipeline refuses to BLOCK.
+     */
+    private static final int PIPELINE_QUEUE_CAPACITY = 1;
+    private static final BoundedQueue.OverflowPolicy PIPELINE_OVERFLOW_POLICY =
+            BoundedQueue.OverflowPolicy.DROP_OLDEST;
+
+    /* Time after capture after which a streamed frame is not worth classifying anymore */
+    private static final long BACKGROUND_FRAME_DEADLINE_MS = 1000;
+
+    /* Time after capture within which a button press must be answered */
+    private static final long USER_SHOT_DEADLINE_MS = 5000;
+
+    /* How often the sustained frame rate is logged in continuous mode */
+    private static final long FRAME_RATE_REPORT_INTERVAL_MS = 5000;
+
+    /* Reuse the results of a recent frame when the scene looks the same, skipping inference */
+    private static final boolean USE_RESULT_CACHE = false;
+    private static final int RESULT_CACHE_SIZE = 16;
+    private static final int RESULT_CACHE_MAX_HASH_DISTANCE = 4;
+    private static final long RESULT_CACHE_TTL_MS = 10000;
+
+    /* In continuous mode, only classify frames that differ enough from the background scene */
+    private static final boolean USE_SCENE_CHANGE_GATE = false;
+    private static final int SCENE_THUMBNAIL_SIZE = 16;
+    private static final float SCENE_CHANGE_THRESHOLD = 6f;
+    private static final float SCENE_BACKGROUND_ADAPTATION = 0.05f;
+    private static final long SCENE_MAX_STALENESS_MS = 10000;
+    private static final int SCENE_GATE_REPORT_INTERVAL_FRAMES = 100;
+
+    /* In continuous mode, weight of the newest frame in the moving average of probabilities */
+    private static final float SMOOTHING_ALPHA = 0f;
+
+    /* Throwaway inferences run at startup, before the device reports it is ready */
+    private static final int WARMUP_RUNS = 1;
+
+    /* Launch intent extras overriding the metrics_port and inference_port resources. A port of
+       0 disables the endpoint. */
+    private static final String EXTRA_METRICS_PORT = "metrics_port";
+    private static final String EXTRA_INFERENCE_PORT = "inference_port";
+    /* Interval between two latency summaries in logcat, or 0 to disable them */
+    private static final long METRICS_LOG_INTERVAL_MS = 60000;
+
+    /* Uploads classified in parallel, each with its own interpreter */
+    private static final int INFERENCE_WORKERS = 2;
+    /* Uploads waiting for a worker before new ones get a 503 */
+    private static final int INFERENCE_QUEUE_SIZE = 8;
+    private static final int INFERENCE_MAX_BODY_BYTES = 4 * 1024 * 1024;
+
+    /* Broadcast swapping in a model from device storage, with "model" and "labels" paths or a
+       "bundle" path */
+    private static final String ACTION_SWAP_MODEL =
+            "com.example.androidthings.imageclassifier.SWAP_MODEL";
+    private static final String EXTRA_MODEL_PATH = "model";
+    private static final String EXTRA_LABELS_PATH = "labels";
+    private static final String EXTRA_BUNDLE_PATH = "bundle";
+
+    /* Broadcast writing the frame spans of the last "seconds" to the app files, as a Chrome
+       trace */
+    private static final String ACTION_DUMP_TRACE =
+            "com.example.androidthings.imageclassifier.DUMP_TRACE";
+    private static final String EXTRA_TRACE_SECONDS = "seconds";
+    private static final int DEFAULT_TRACE_SECONDS = 10;
+
     private ImagePreprocessor mImagePreprocessor;
     private TextToSpeech mTtsEngine;
     private TtsSpeaker mTtsSpeaker;
     private CameraHandler mCameraHandler;
-    private TensorFlowImageClassifier mTensorFlowClassifier;
+    private ModelBundle mModelBundle;
+    // Matches the images used to train the TensorFlow model
+    private ModelDescriptor mModel;
+    private Size mModelImageSize;
+    private SwappableClassifier mTensorFlowClassifier;
+    private boolean mReceiversRegistered;
+    private final PipelineMetrics mMetrics = PipelineMetrics.getInstance();
+    private final TraceRecorder mTraceRecorder = TraceRecorder.getInstance();
+    private int mMetricsPort;
+    private int mInferencePort;
+    private LocalHttpServer mMetricsServer;
+    private InferenceEndpoint mInferenceEndpoint;
+    /* When results were handed to text to speech, or 0 once it started speaking them */
+    private volatile long mSpeakRequestedNanos;
+    private volatile long mSpeakFrameId;
+    private ClassificationPipeline mPipeline;
+    private ClassificationScheduler mScheduler;
+    /* Cache of the latest model */
+    private volatile ResultCache mResultCache;
+    private SceneChangeGate mSceneChangeGate;
 
     private HandlerThread mBackgroundThread;
     private Handler mBackgroundHandler;
@@ -71,11 +203,20 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
     private ButtonInputDriver mButtonDriver;
     private Gpio mReadyLED;
 
+    private FrameRateMonitor mFrameRateMonitor;
+    private Bitmap mDisplayedBitmap;
+    private volatile Collection<Recognition> mLastResults;
+
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
+        mMetricsPort = getIntent().getIntExtra(EXTRA_METRICS_PORT,
+                getResources().getInteger(R.integer.metrics_port));
+        mInferencePort = getIntent().getIntExtra(EXTRA_INFERENCE_PORT,
+                getResources().getInteger(R.integer.inference_port));
+
         setContentView(R.layout.activity_camera);
         mImage = findViewById(R.id.imageView);
         mResultText = findViewById(R.id.resultText);
@@ -117,52 +258,326 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
     private Runnable mInitializeOnBackground = new Runnable() {
         @Override
         public void run() {
-            mCameraHandler = CameraHandler.getInstance();
+            if (MODEL_BUNDLE != null) {
+                // Only the header is read here, the classifier step reads and verifies the rest
+                try {
+                    mModelBundle = TensorFlowHelper.loadModelBundle(ImageClassifierActivity.this,
+                            MODEL_BUNDLE);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot open model bundle", e);
+                }
+                mModel = mModelBundle.getDescriptor();
+            } else {
+                mModel = MODEL;
+            }
+            mModelImageSize = new Size(mModel.getInputWidth(), mModel.getInputHeight());
+            if (USE_YUV_CAPTURE && mModel.getInputType() != ModelDescriptor.DataType.UINT8) {
+                // The YUV conversion writes RGB bytes straight into the model input
+                throw new IllegalStateException("YUV capture needs a model with uint8 input");
+            }
+            // Camera, text to speech and the classifier do not depend on each other
+            StartupOrchestrator startup = new StartupOrchestrator();
+            startup.addStep("camera", new StartupOrchestrator.Step() {
+                @Override
+                public void run() throws Exception {
+                    initializeCamera();
+                }
+            });
+            startup.addStep("tts", new StartupOrchestrator.Step() {
+                @Override
+                public void run() {
+                    initializeTextToSpeech();
+                }
+            });
+            startup.addStep("classifier", new StartupOrchestrator.Step() {
+                @Override
+                public void run() throws IOException {
+                    initializeClassifier();
+                }
+            });
             try {
-                mCameraHandler.initializeCamera(ImageClassifierActivity.this,
-                    mBackgroundHandler, MODEL_IMAGE_SIZE, ImageClassifierActivity.this);
-                CameraHandler.dumpFormatInfo(ImageClassifierActivity.this);
-            } catch (CameraAccessException e) {
-                throw new RuntimeException(e);
+                startup.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                Log.i(TAG, "Startup timeline:\n" + startup.formatTimeline());
             }
-            Size cameraCaptureSize = mCameraHandler.getImageDimensions();
-
-            mImagePreprocessor =
-                new ImagePreprocessor(cameraCaptureSize.getWidth(), cameraCaptureSize.getHeight(),
-                    MODEL_IMAGE_SIZE.getWidth(), MODEL_IMAGE_SIZE.getHeight());
+            // Only the shell holds DUMP, so other apps cannot swap in a model of their own, nor
+            // fill the app storage with traces
+            registerReceiver(mSwapModelReceiver, new IntentFilter(ACTION_SWAP_MODEL),
+                    Manifest.permission.DUMP, null);
+            registerReceiver(mDumpTraceReceiver, new IntentFilter(ACTION_DUMP_TRACE),
+                    Manifest.permission.DUMP, null);
+            mReceiversRegistered = true;
 
-            mTtsSpeaker = new TtsSpeaker();
-            mTtsSpeaker.setHasSenseOfHumor(true);
-            mTtsEngine = new TextToSpeech(ImageClassifierActivity.this,
-                    new TextToSpeech.OnInitListener() {
-                        @Override
-                        public void onInit(int status) {
-                            if (status == TextToSpeech.SUCCESS) {
-                                mTtsEngine.setLanguage(Locale.US);
-                                mTtsEngine.setOnUtteranceProgressListener(utteranceListener);
-                                mTtsSpeaker.speakReady(mTtsEngine);
-                            } else {
-                                Log.w(TAG, "Could not open TTS Engine (onInit status=" + status
-                                        + "). Ignoring text to speech");
-                                mTtsEngine = null;
-                            }
-                        }
-                    });
+            setReady(true);
+            Log.i(TAG, "Ready " + (SystemClock.elapsedRealtime()
+                    - Process.getStartElapsedRealtime()) + " ms after the process started");
+            startMetrics();
+            startInferenceEndpoint();
+
+            if (CONTINUOUS_MODE) {
+                mFrameRateMonitor = new FrameRateMonitor("Continuous classification",
+                        FRAME_RATE_REPORT_INTERVAL_MS);
+                if (USE_SCENE_CHANGE_GATE) {
+                    mSceneChangeGate = new SceneChangeGate(SCENE_THUMBNAIL_SIZE,
+                            SCENE_CHANGE_THRESHOLD, SCENE_BACKGROUND_ADAPTATION,
+                            SCENE_MAX_STALENESS_MS);
+                }
+                if (USE_PIPELINE) {
+                    mScheduler = new ClassificationScheduler(mTensorFlowClassifier,
+                            PIPELINE_QUEUE_CAPACITY, PIPELINE_OVERFLOW_POLICY);
+                    mScheduler.start();
+                    mPipeline = new ClassificationPipeline(mImagePreprocessor,
+                            mTensorFlowClassifier.getModelDescriptor(), mScheduler,
+                            USE_YUV_CAPTURE,
+                            PIPELINE_QUEUE_CAPACITY, PIPELINE_OVERFLOW_POLICY,
+                            BACKGROUND_FRAME_DEADLINE_MS, USER_SHOT_DEADLINE_MS,
+                            mPipelinePublisher);
+                    mPipeline.setSceneChangeGate(mSceneChangeGate);
+                    mPipeline.start();
+                }
+                mCameraHandler.startStreaming(CONTINUOUS_FRAME_INTERVAL_MS);
+            } else if (WARM_CAPTURE_SESSION) {
+                mCameraHandler.setWarmSessionEnabled(true);
+            }
+        }
+    };
 
+    private void startMetrics() {
+        if (mMetricsPort != 0) {
+            mMetricsServer = new LocalHttpServer(InetAddress.getLoopbackAddress(), mMetricsPort,
+                    1, 4, 0);
+            mMetricsServer.addHandler("/metrics", new LocalHttpServer.Handler() {
+                @Override
+                public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                    StringBuilder text = new StringBuilder();
+                    mMetrics.writePrometheus(text);
+                    return new LocalHttpServer.Response(200, "text/plain; version=0.0.4",
+                            text.toString().getBytes(StandardCharsets.UTF_8));
+                }
+            });
             try {
-                mTensorFlowClassifier = new TensorFlowImageClassifier(ImageClassifierActivity.this,
-                    MODEL_IMAGE_SIZE.getWidth(), MODEL_IMAGE_SIZE.getHeight());
+                mMetricsServer.start();
             } catch (IOException e) {
-                throw new IllegalStateException("Cannot initialize TFLite Classifier", e);
+                Log.w(TAG, "Could not start the metrics endpoint on port " + mMetricsPort, e);
+                mMetricsServer = null;
             }
+        }
+        if (METRICS_LOG_INTERVAL_MS > 0) {
+            mBackgroundHandler.postDelayed(mLogMetrics, METRICS_LOG_INTERVAL_MS);
+        }
+    }
 
-            setReady(true);
+    /**
+     * Serves the model loaded at startup to other devices. Swapped in models only replace the
+     * classifier of the camera.
+     */
+    private void startInferenceEndpoint() {
+        if (mInferencePort == 0) {
+            return;
+        }
+        try {
+            final MappedByteBuffer model;
+            final List<String> labels;
+            if (mModelBundle != null) {
+                model = mModelBundle.getModel();
+                labels = mModelBundle.getLabels();
+            } else {
+                model = TensorFlowImageClassifier.loadModel(this, MODEL);
+                labels = TensorFlowImageClassifier.loadLabels(this, MODEL);
+            }
+            mInferenceEndpoint = new InferenceEndpoint(model, labels, mModel, null,
+                    mInferencePort, INFERENCE_WORKERS, INFERENCE_QUEUE_SIZE,
+                    INFERENCE_MAX_BODY_BYTES);
+            mInferenceEndpoint.start();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not start the inference endpoint on port " + mInferencePort, e);
+            if (mInferenceEndpoint != null) {
+                try {
+                    mInferenceEndpoint.close();
+                } catch (IOException ignored) {
+                    // close quietly
+                }
+                mInferenceEndpoint = null;
+            }
+        }
+    }
+
+    private final Runnable mLogMetrics = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "Latency summary: " + mMetrics.summary());
+            final InferenceEndpoint endpoint = mInferenceEndpoint;
+            if (endpoint != null) {
+                Log.i(TAG, "Upload latency summary: " + endpoint.getMetrics().summary());
+            }
+            if (mBackgroundHandler != null) {
+                mBackgroundHandler.postDelayed(this, METRICS_LOG_INTERVAL_MS);
+            }
+        }
+    };
+
+    private void initializeCamera() throws CameraAccessException {
+        mCameraHandler = CameraHandler.getInstance();
+        mCameraHandler.initializeCamera(ImageClassifierActivity.this,
+            mBackgroundHandler, mModelImageSize,
+            USE_YUV_CAPTURE ? ImageFormat.YUV_420_888 : ImageFormat.JPEG,
+            ImageClassifierActivity.this);
+        CameraHandler.dumpFormatInfo(ImageClassifierActivity.this);
+        Size cameraCaptureSize = mCameraHandler.getImageDimensions();
+
+        // Each pipeline queue can hold frames, on top of the ones being processed or shown
+        int framesInFlight = CONTINUOUS_MODE && USE_PIPELINE
+                ? 2 * PIPELINE_QUEUE_CAPACITY + 4 : 2;
+        mImagePreprocessor =
+            new ImagePreprocessor(cameraCaptureSize.getWidth(), cameraCaptureSize.getHeight(),
+                mModelImageSize.getWidth(), mModelImageSize.getHeight(), framesInFlight);
+    }
+
+    private void initializeTextToSpeech() {
+        mTtsSpeaker = new TtsSpeaker();
+        mTtsSpeaker.setHasSenseOfHumor(true);
+        mTtsEngine = new TextToSpeech(ImageClassifierActivity.this,
+                new TextToSpeech.OnInitListener() {
+                    @Override
+                    public void onInit(int status) {
+                        if (status == TextToSpeech.SUCCESS) {
+                            mTtsEngine.setLanguage(Locale.US);
+                            mTtsEngine.setOnUtteranceProgressListener(utteranceListener);
+                            mTtsSpeaker.speakReady(mTtsEngine);
+                        } else {
+                            Log.w(TAG, "Could not open TTS Engine (onInit status=" + status
+                                    + "). Ignoring text to speech");
+                            mTtsEngine = null;
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Loads the model with its pages prefetched and runs a warm-up inference, so the first frame
+     * is classified at full speed.
+     */
+    private void initializeClassifier() throws IOException {
+        final TensorFlowImageClassifier classifier;
+        if (mModelBundle != null) {
+            // Reading the whole bundle for its checksum prefetches the model too
+            mModelBundle.verify();
+            classifier = new TensorFlowImageClassifier(ImageClassifierActivity.this,
+                    mModelBundle, AUTO_TUNE_INTERPRETER);
+        } else {
+            classifier = new TensorFlowImageClassifier(ImageClassifierActivity.this, MODEL,
+                    AUTO_TUNE_INTERPRETER);
+        }
+        classifier.warmUp(WARMUP_RUNS);
+        mClassifierInitializer.initialize(classifier);
+        // Swapped in models run with the threads and NNAPI setting tuned for the first one
+        mTensorFlowClassifier = new SwappableClassifier(classifier,
+                classifier.getInterpreterConfig(), mClassifierInitializer);
+    }
+
+    /**
+     * Applies the settings of this activity to every classifier, including swapped in ones.
+     */
+    private final SwappableClassifier.Initializer mClassifierInitializer =
+            new SwappableClassifier.Initializer() {
+                @Override
+                public void initialize(TensorFlowImageClassifier classifier) {
+                    if (USE_RESULT_CACHE) {
+                        // Every model gets a cache of its own, so results of the previous one
+                        // are never reused, not even those of classifications still running
+                        // on it when the new one is swapped in
+                        mResultCache = new ResultCache(RESULT_CACHE_SIZE,
+                                RESULT_CACHE_MAX_HASH_DISTANCE, RESULT_CACHE_TTL_MS);
+                        classifier.setResultCache(mResultCache);
+                    }
+                    if (CONTINUOUS_MODE) {
+                        classifier.setSmoothing(SMOOTHING_ALPHA);
+                    }
+                }
+            };
+
+    private final BroadcastReceiver mSwapModelReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String bundlePath = intent.getStringExtra(EXTRA_BUNDLE_PATH);
+            String modelPath = intent.getStringExtra(EXTRA_MODEL_PATH);
+            String labelsPath = intent.getStringExtra(EXTRA_LABELS_PATH);
+            if (bundlePath != null) {
+                mTensorFlowClassifier.swapFromBundle(new File(bundlePath), mSwapListener);
+            } else if (modelPath != null && labelsPath != null) {
+                mTensorFlowClassifier.swapFromStorage(new File(modelPath), new File(labelsPath),
+                        mSwapListener);
+            } else {
+                Log.w(TAG, ACTION_SWAP_MODEL + " needs a " + EXTRA_BUNDLE_PATH + " extra, or "
+                        + EXTRA_MODEL_PATH + " and " + EXTRA_LABELS_PATH + " extras");
+            }
+        }
+    };
+
+    private final BroadcastReceiver mDumpTraceReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int seconds = intent.getIntExtra(EXTRA_TRACE_SECONDS, DEFAULT_TRACE_SECONDS);
+            final File file = new File(new File(getFilesDir(), "traces"),
+                    "frames-" + System.currentTimeMillis() + ".json");
+            // Off the main thread and the camera thread, the dump takes a while
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!file.getParentFile().isDirectory()
+                                && !file.getParentFile().mkdirs()) {
+                            throw new IOException("Cannot create " + file.getParent());
+                        }
+                        int spans = FrameTrace.dump(file, seconds * 1000L);
+                        Log.i(TAG, "Wrote " + spans + " spans of the last " + seconds
+                                + " s to " + file);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not write the trace to " + file, e);
+                    }
+                }
+            }, "trace-dump").start();
         }
     };
 
+    private final SwappableClassifier.SwapListener mSwapListener =
+            new SwappableClassifier.SwapListener() {
+                @Override
+                public void onModelSwapped(ModelDescriptor descriptor, long loadMillis) {
+                    Log.i(TAG, "Now classifying with " + descriptor);
+                }
+
+                @Override
+                public void onSwapFailed(ModelDescriptor descriptor, Exception e) {
+                    Log.w(TAG, "Keeping the current model, could not load "
+                            + descriptor, e);
+                }
+            };
+
     private Runnable mBackgroundClickHandler = new Runnable() {
         @Override
         public void run() {
+            if (mPipeline != null) {
+                // Classify the next frame ahead of the streamed ones, and speak its results
+                if (mTtsEngine != null) {
+                    mTtsSpeaker.speakShutterSound(mTtsEngine);
+                }
+                mPipeline.requestUserShot();
+                return;
+            }
+            if (CONTINUOUS_MODE) {
+                // Frames are already being classified, so just announce the latest results
+                Collection<Recognition> results = mLastResults;
+                if (mTtsEngine != null && results != null) {
+                    speakResults(results);
+                } else {
+                    setReady(true);
+                }
+                return;
+            }
             if (mTtsEngine != null) {
                 mTtsSpeaker.speakShutterSound(mTtsEngine);
             }
@@ -170,9 +585,24 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
         }
     };
 
+    private void speakResults(Collection<Recognition> results) {
+        mSpeakFrameId = FrameTrace.currentFrame();
+        mSpeakRequestedNanos = System.nanoTime();
+        mTtsSpeaker.speakResults(mTtsEngine, results);
+    }
+
     private UtteranceProgressListener utteranceListener = new UtteranceProgressListener() {
         @Override
         public void onStart(String utteranceId) {
+            final long requestedNanos = mSpeakRequestedNanos;
+            if (requestedNanos != 0) {
+                mSpeakRequestedNanos = 0;
+                // Requested and started on different threads, so there is no trace section
+                final long startedNanos = System.nanoTime();
+                mMetrics.record(PipelineMetrics.Stage.TTS_START, startedNanos - requestedNanos);
+                mTraceRecorder.record(FrameTrace.TTS_START, mSpeakFrameId, requestedNanos,
+                        startedNanos);
+            }
             setReady(false);
         }
 
@@ -211,7 +641,11 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
     private void startImageCapture() {
         boolean isReady = mReady.get();
         Log.d(TAG, "Ready for another capture? " + isReady);
-        if (isReady) {
+        if (mPipeline != null) {
+            // The scheduler puts presses ahead of streamed frames, so none are turned down
+            mResultText.setText("Hold on...");
+            mBackgroundHandler.post(mBackgroundClickHandler);
+        } else if (isReady) {
             setReady(false);
             mResultText.setText("Hold on...");
             mBackgroundHandler.post(mBackgroundClickHandler);
@@ -236,48 +670,191 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
 
     @Override
     public void onImageAvailable(ImageReader reader) {
-        final Bitmap bitmap;
-        try (Image image = reader.acquireNextImage()) {
-            bitmap = mImagePreprocessor.preprocessImage(image);
+        if (mPipeline != null) {
+            Image image = reader.acquireLatestImage();
+            if (image != null) {
+                mCameraHandler.recordCaptureLatency(image);
+                mPipeline.submit(image);
+            }
+            return;
+        }
+
+        FrameTrace.startFrame();
+        final Collection<Recognition> results;
+        final TensorFlowImageClassifier classifier = mTensorFlowClassifier.acquire();
+        try {
+            results = classify(reader, classifier);
+        } finally {
+            mTensorFlowClassifier.release(classifier);
+        }
+        if (results != null) {
+            publishResults(results);
+        } else if (!CONTINUOUS_MODE) {
+            // No frame, or it could not be decoded, so the next press can try again
+            Log.w(TAG, "Nothing to classify");
+            setReady(true);
         }
+    }
+
+    /**
+     * @return the results of the latest image of {@code reader}, or null if there is none, it
+     * could not be decoded or the scene change gate skipped it.
+     */
+    private Collection<Recognition> classify(ImageReader reader,
+                                             TensorFlowImageClassifier classifier) {
+        final Collection<Recognition> results;
+        if (USE_YUV_CAPTURE) {
+            // Convert straight into the model input, there is no bitmap to show on screen
+            try (Image image = reader.acquireLatestImage()) {
+                if (image == null) {
+                    return null;
+                }
+                mCameraHandler.recordCaptureLatency(image);
+                if (mSceneChangeGate != null) {
+                    mImagePreprocessor.sampleLuma(image, mSceneChangeGate);
+                    if (!passesSceneChangeGate()) {
+                        return null;
+                    }
+                }
+                mImagePreprocessor.preprocessYuvImage(image, classifier.getInputBuffer());
+            }
+            results = classifier.doRecognizeInputBuffer();
+        } else {
+            final Bitmap bitmap;
+            try (Image image = reader.acquireLatestImage()) {
+                if (image == null) {
+                    return null;
+                }
+                mCameraHandler.recordCaptureLatency(image);
+                bitmap = mImagePreprocessor.preprocessImage(image);
+            }
+            if (bitmap == null) {
+                // Could not be decoded
+                return null;
+            }
+            if (mSceneChangeGate != null) {
+                mImagePreprocessor.sampleLuma(bitmap, mSceneChangeGate);
+                if (!passesSceneChangeGate()) {
+                    mImagePreprocessor.releaseBitmap(bitmap);
+                    return null;
+                }
+            }
+
+            showBitmap(bitmap);
+            results = classifier.doRecognize(bitmap);
+        }
+        return results;
+    }
 
+    /**
+     * Ask the scene change gate whether the frame it just sampled should be classified.
+     */
+    private boolean passesSceneChangeGate() {
+        boolean pass = mSceneChangeGate.shouldClassify(SystemClock.uptimeMillis());
+        long frames = mSceneChangeGate.getPassCount() + mSceneChangeGate.getSkipCount();
+        if (frames % SCENE_GATE_REPORT_INTERVAL_FRAMES == 0) {
+            Log.i(TAG, mSceneChangeGate.toString());
+        }
+        return pass;
+    }
+
+    private final ClassificationPipeline.Publisher mPipelinePublisher =
+            new ClassificationPipeline.Publisher() {
+                @Override
+                public void publish(long frameId, Bitmap bitmap,
+                                    Collection<Recognition> results, boolean userInitiated) {
+                    if (bitmap != null) {
+                        showBitmap(bitmap);
+                    }
+                    publishResults(results);
+                    if (userInitiated && mTtsEngine != null) {
+                        speakResults(results);
+                    }
+                }
+
+                @Override
+                public void onUserShotDropped(long frameId) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mResultText.setText("Too busy, try again");
+                        }
+                    });
+                    if (mTtsEngine != null) {
+                        mTtsSpeaker.speakBusy(mTtsEngine);
+                    } else {
+                        setReady(true);
+                    }
+                }
+            };
+
+    /**
+     * Show a preprocessed frame on the display, giving the previous one back to the preprocessor.
+     */
+    private void showBitmap(final Bitmap bitmap) {
+        final long frameId = FrameTrace.currentFrame();
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                mImage.setImageBitmap(bitmap);
+                FrameTrace.setFrame(frameId);
+                final long start = FrameTrace.begin(FrameTrace.SHOW_BITMAP);
+                try {
+                    mImage.setImageBitmap(bitmap);
+                    // The previous frame is no longer shown, so its bitmap can be reused
+                    mImagePreprocessor.releaseBitmap(mDisplayedBitmap);
+                    mDisplayedBitmap = bitmap;
+                } finally {
+                    FrameTrace.end(FrameTrace.SHOW_BITMAP, start);
+                }
             }
         });
+    }
 
-        final Collection<Recognition> results = mTensorFlowClassifier.doRecognize(bitmap);
+    /**
+     * Show the results and, for a single shot, speak them.
+     */
+    private void publishResults(final Collection<Recognition> results) {
         Log.d(TAG, "Got the following results from Tensorflow: " + results);
+        mLastResults = results;
+        mMetrics.increment(PipelineMetrics.Counter.FRAMES_CLASSIFIED);
 
+        final long frameId = FrameTrace.currentFrame();
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                if (results == null || results.isEmpty()) {
-                    mResultText.setText("I don't understand what I see");
-                } else {
-                    StringBuilder sb = new StringBuilder();
-                    Iterator<Recognition> it = results.iterator();
-                    int counter = 0;
-                    while (it.hasNext()) {
-                        Recognition r = it.next();
-                        sb.append(r.getTitle());
-                        counter++;
-                        if (counter < results.size() - 1 ) {
-                            sb.append(", ");
-                        } else if (counter == results.size() - 1) {
-                            sb.append(" or ");
+                FrameTrace.setFrame(frameId);
+                final long start = FrameTrace.begin(FrameTrace.SHOW_RESULTS);
+                try {
+                    if (results == null || results.isEmpty()) {
+                        mResultText.setText("I don't understand what I see");
+                    } else {
+                        StringBuilder sb = new StringBuilder();
+                        Iterator<Recognition> it = results.iterator();
+                        int counter = 0;
+                        while (it.hasNext()) {
+                            Recognition r = it.next();
+                            sb.append(r.getTitle());
+                            counter++;
+                            if (counter < results.size() - 1 ) {
+                                sb.append(", ");
+                            } else if (counter == results.size() - 1) {
+                                sb.append(" or ");
+                            }
                         }
+                        mResultText.setText(sb.toString());
                     }
-                    mResultText.setText(sb.toString());
+                } finally {
+                    FrameTrace.end(FrameTrace.SHOW_RESULTS, start);
                 }
             }
         });
 
-        if (mTtsEngine != null) {
+        if (CONTINUOUS_MODE) {
+            // Results are only spoken on request, so the next frame can be processed right away
+            mFrameRateMonitor.onFrame();
+        } else if (mTtsEngine != null) {
             // speak out loud the result of the image recognition
-            mTtsSpeaker.speakResults(mTtsEngine, results);
+            speakResults(results);
         } else {
             // if theres no TTS, we don't need to wait until the utterance is spoken, so we set
             // to ready right away.
@@ -288,6 +865,31 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mReceiversRegistered) {
+            unregisterReceiver(mSwapModelReceiver);
+            unregisterReceiver(mDumpTraceReceiver);
+            mReceiversRegistered = false;
+        }
+        try {
+            if (mPipeline != null) mPipeline.stop();
+        } catch (Throwable t) {
+            // close quietly
+        }
+        try {
+            if (mScheduler != null) mScheduler.stop();
+        } catch (Throwable t) {
+            // close quietly
+        }
+        try {
+            if (mMetricsServer != null) mMetricsServer.close();
+        } catch (Throwable t) {
+            // close quietly
+        }
+        try {
+            if (mInferenceEndpoint != null) mInferenceEndpoint.close();
+        } catch (Throwable t) {
+            // close quietly
+        }
         try {
             if (mBackgroundThread != null) mBackgroundThread.quit();
         } catch (Throwable t) {
@@ -301,8 +903,11 @@ public class ImageClassifierActivity extends Activity implements ImageReader.OnI
         } catch (Throwable t) {
             // close quietly
         }
+        if (mResultCache != null) {
+            Log.i(TAG, "Result cache of the latest model at shutdown: " + mResultCache);
+        }
         try {
-            if (mTensorFlowClassifier != null) mTensorFlowClassifier.destroyClassifier();
+            if (mTensorFlowClassifier != null) mTensorFlowClassifier.destroy();
         } catch (Throwable t) {
             // close quietly
         }
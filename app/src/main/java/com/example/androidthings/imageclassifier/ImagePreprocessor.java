@@ -18,19 +18,24 @@ package com.example.androidthings.imageclassifier;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.media.Image;
 import android.os.Environment;
 import android.util.Log;
 
+import com.example.androidthings.imageclassifier.metrics.FrameTrace;
+import com.example.androidthings.imageclassifier.metrics.PipelineMetrics;
+
 import junit.framework.Assert;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 /**
@@ -40,63 +45,274 @@ import java.nio.ByteBuffer;
 public class ImagePreprocessor {
     private static final boolean SAVE_PREVIEW_BITMAP = false;
 
-    private Bitmap rgbFrameBitmap;
-    private Bitmap croppedBitmap;
+    /** Frames that can be held by the caller at once by default: one classified, one shown. */
+    private static final int DEFAULT_FRAMES_IN_FLIGHT = 2;
+
+    private final int previewWidth;
+    private final int previewHeight;
+
+    /** Output bitmaps handed out by {@link #preprocessImage(Image)}. */
+    private final BitmapPool croppedBitmapPool;
+
+    /** Decode target reused through {@code inBitmap}, along with the matching transform. */
+    private Bitmap regionBitmap;
+    private final Matrix cropMatrix = new Matrix();
+    private final Canvas cropCanvas = new Canvas();
+    private long regionBitmapHits;
+    private long regionBitmapMisses;
+
+    /** Center square of the camera frame, the only region of the JPEG that gets decoded. */
+    private final Rect cropRegion;
+    private final BitmapFactory.Options decodeOptions;
+
+    /** Holds the compressed JPEG bytes, grown when a larger frame comes in. */
+    private byte[] jpegBytes = new byte[0];
+
+    /** Source column and row sampled for each column and row of the cropped YUV output. */
+    private final int[] yuvCropColumns;
+    private final int[] yuvCropRows;
+
+    /** One row of RGB output, written to the tensor buffer in bulk. */
+    private final byte[] yuvRgbRow;
+
+    /** Pixels of a cropped bitmap, read for the scene change gate. */
+    private int[] gatePixels;
+
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
 
     public ImagePreprocessor(int previewWidth, int previewHeight,
                              int croppedwidth, int croppedHeight) {
-        this.croppedBitmap = Bitmap.createBitmap(croppedwidth, croppedHeight, Config.ARGB_8888);
-        this.rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
+        this(previewWidth, previewHeight, croppedwidth, croppedHeight, DEFAULT_FRAMES_IN_FLIGHT);
     }
 
+    /**
+     * @param framesInFlight number of output bitmaps that can be held at the same time before
+     *                       they are returned with {@link #releaseBitmap(Bitmap)}.
+     */
+    public ImagePreprocessor(int previewWidth, int previewHeight,
+                             int croppedwidth, int croppedHeight, int framesInFlight) {
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.croppedBitmapPool = new BitmapPool(croppedwidth, croppedHeight, Config.ARGB_8888,
+                framesInFlight);
+
+        // We only want the center square out of the original rectangle.
+        final int minDim = CenterCrop.squareSize(previewWidth, previewHeight);
+        final int left = (previewWidth - minDim) / 2;
+        final int top = (previewHeight - minDim) / 2;
+        this.cropRegion = new Rect(left, top, left + minDim, top + minDim);
+        this.decodeOptions = new BitmapFactory.Options();
+        this.decodeOptions.inPreferredConfig = Config.ARGB_8888;
+        this.decodeOptions.inMutable = true;
+        this.decodeOptions.inSampleSize =
+                CenterCrop.computeSampleSize(minDim, Math.max(croppedwidth, croppedHeight));
+
+        this.yuvCropColumns = CenterCrop.centerCropSamples(previewWidth, minDim, croppedwidth);
+        this.yuvCropRows = CenterCrop.centerCropSamples(previewHeight, minDim, croppedHeight);
+        this.yuvRgbRow = new byte[croppedwidth * 3];
+    }
+
+    /**
+     * Decodes the center square of a JPEG image and rescales it to the cropped size. Only the
+     * cropped region is decoded, subsampled by the largest power of two that keeps it at least
+     * as large as the cropped size. Not thread safe.
+     *
+     * @return a pooled bitmap, to be given back with {@link #releaseBitmap(Bitmap)} once it is no
+     * longer used, or null if the frame could not be decoded. The image is closed either way.
+     */
     public Bitmap preprocessImage(final Image image) {
         if (image == null) {
             return null;
         }
 
-        Assert.assertEquals("Invalid size width", rgbFrameBitmap.getWidth(), image.getWidth());
-        Assert.assertEquals("Invalid size height", rgbFrameBitmap.getHeight(), image.getHeight());
+        Bitmap croppedBitmap = null;
+        try {
+            Assert.assertEquals("Invalid size width", previewWidth, image.getWidth());
+            Assert.assertEquals("Invalid size height", previewHeight, image.getHeight());
 
-        if (croppedBitmap != null && rgbFrameBitmap != null) {
             ByteBuffer bb = image.getPlanes()[0].getBuffer();
-            rgbFrameBitmap = BitmapFactory.decodeStream(new ByteBufferBackedInputStream(bb));
-            cropAndRescaleBitmap(rgbFrameBitmap, croppedBitmap, 0);
-        }
+            final int length = bb.remaining();
+            if (jpegBytes.length < length) {
+                jpegBytes = new byte[length];
+            }
+            bb.get(jpegBytes, 0, length);
 
-        image.close();
+            long start = FrameTrace.begin(FrameTrace.DECODE);
+            final Bitmap decoded;
+            final long decodeNanos;
+            try {
+                decoded = decodeRegion(jpegBytes, length);
+            } finally {
+                decodeNanos = FrameTrace.end(FrameTrace.DECODE, start);
+            }
+            metrics.record(PipelineMetrics.Stage.DECODE, decodeNanos);
+            if (decoded == null) {
+                // A pooled bitmap still holds an older frame, which must not pass for this one
+                return null;
+            }
 
-        // For debugging
-        if (SAVE_PREVIEW_BITMAP) {
-            saveBitmap(croppedBitmap);
+            croppedBitmap = croppedBitmapPool.acquire();
+            start = FrameTrace.begin(FrameTrace.CROP_RESIZE);
+            final long cropNanos;
+            try {
+                if (decoded == regionBitmap) {
+                    regionBitmapHits++;
+                } else {
+                    // First frame, or the previous target could not be reused
+                    regionBitmapMisses++;
+                    regionBitmap = decoded;
+                    decodeOptions.inBitmap = decoded;
+                    setCropTransform(cropMatrix, decoded, croppedBitmap, 0);
+                }
+                cropCanvas.setBitmap(croppedBitmap);
+                cropCanvas.drawBitmap(decoded, cropMatrix, null);
+                cropCanvas.setBitmap(null);
+            } finally {
+                cropNanos = FrameTrace.end(FrameTrace.CROP_RESIZE, start);
+            }
+            metrics.record(PipelineMetrics.Stage.CROP_RESIZE, cropNanos);
+
+            // For debugging
+            if (SAVE_PREVIEW_BITMAP) {
+                saveBitmap(croppedBitmap);
+            }
+            final Bitmap result = croppedBitmap;
+            croppedBitmap = null;
+            return result;
+        } finally {
+            if (croppedBitmap != null) {
+                // Cropping failed
+                croppedBitmapPool.release(croppedBitmap);
+            }
+            image.close();
         }
-        return croppedBitmap;
     }
 
-    private static class ByteBufferBackedInputStream extends InputStream {
+    /**
+     * Give back a bitmap returned by {@link #preprocessImage(Image)} so it can be reused for a
+     * later frame. Can be called from any thread.
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        croppedBitmapPool.release(bitmap);
+    }
 
-        ByteBuffer buf;
+    /**
+     * @return how many frames reused a pooled bitmap, for the decode target and the output.
+     */
+    public long getPoolHitCount() {
+        return regionBitmapHits + croppedBitmapPool.getHitCount();
+    }
 
-        public ByteBufferBackedInputStream(ByteBuffer buf) {
-            this.buf = buf;
-        }
+    /**
+     * @return how many frames needed a newly allocated bitmap, for the decode target and the
+     * output.
+     */
+    public long getPoolMissCount() {
+        return regionBitmapMisses + croppedBitmapPool.getMissCount();
+    }
 
-        public int read() throws IOException {
-            if (!buf.hasRemaining()) {
-                return -1;
+    private Bitmap decodeRegion(byte[] data, int length) {
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(data, 0, length, false);
+            try {
+                return decoder.decodeRegion(cropRegion, decodeOptions);
+            } catch (IllegalArgumentException e) {
+                // The reused target does not fit this frame, let the decoder allocate a new one
+                decodeOptions.inBitmap = null;
+                return decoder.decodeRegion(cropRegion, decodeOptions);
+            }
+        } catch (IOException e) {
+            Log.w("ImageHelper", "Could not decode camera image", e);
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
             }
-            return buf.get() & 0xFF;
         }
+    }
 
-        public int read(byte[] bytes, int off, int len)
-                throws IOException {
-            if (!buf.hasRemaining()) {
-                return -1;
+    /**
+     * Converts a {@link ImageFormat#YUV_420_888} image into RGB bytes in a single pass, writing
+     * the center square, resized to the cropped size, straight into {@code imgData}. No
+     * intermediate {@link Bitmap} is created.
+     *
+     * @param image   the camera image, closed before returning.
+     * @param imgData the model input buffer, filled from its start.
+     */
+    public void preprocessYuvImage(final Image image, final ByteBuffer imgData) {
+        if (image == null) {
+            return;
+        }
+
+        Assert.assertEquals("Invalid format", ImageFormat.YUV_420_888, image.getFormat());
+        Assert.assertEquals("Invalid size width", previewWidth, image.getWidth());
+        Assert.assertEquals("Invalid size height", previewHeight, image.getHeight());
+
+        final Image.Plane[] planes = image.getPlanes();
+        final ByteBuffer yBuffer = planes[0].getBuffer();
+        final ByteBuffer uBuffer = planes[1].getBuffer();
+        final ByteBuffer vBuffer = planes[2].getBuffer();
+        final int yRowStride = planes[0].getRowStride();
+        final int yPixelStride = planes[0].getPixelStride();
+        final int uvRowStride = planes[1].getRowStride();
+        final int uvPixelStride = planes[1].getPixelStride();
+
+        final long start = FrameTrace.begin(FrameTrace.CROP_RESIZE);
+        final long cropNanos;
+        try {
+            imgData.rewind();
+            for (int srcY : yuvCropRows) {
+                final int yRowOffset = srcY * yRowStride;
+                final int uvRowOffset = (srcY >> 1) * uvRowStride;
+                int out = 0;
+                for (int srcX : yuvCropColumns) {
+                    final int uvOffset = uvRowOffset + (srcX >> 1) * uvPixelStride;
+                    final int y = yBuffer.get(yRowOffset + srcX * yPixelStride) & 0xFF;
+                    final int u = (uBuffer.get(uvOffset) & 0xFF) - 128;
+                    final int v = (vBuffer.get(uvOffset) & 0xFF) - 128;
+                    // BT.601 full range, in 8.8 fixed point
+                    yuvRgbRow[out++] = clampToByte(y + ((359 * v) >> 8));
+                    yuvRgbRow[out++] = clampToByte(y - ((88 * u + 183 * v) >> 8));
+                    yuvRgbRow[out++] = clampToByte(y + ((454 * u) >> 8));
+                }
+                imgData.put(yuvRgbRow);
             }
+        } finally {
+            cropNanos = FrameTrace.end(FrameTrace.CROP_RESIZE, start);
+        }
+        metrics.record(PipelineMetrics.Stage.CROP_RESIZE, cropNanos);
 
-            len = Math.min(len, buf.remaining());
-            buf.get(bytes, off, len);
-            return len;
+        image.close();
+    }
+
+    private static byte clampToByte(int value) {
+        return (byte) (value < 0 ? 0 : (value > 255 ? 255 : value));
+    }
+
+    /**
+     * Builds the {@link SceneChangeGate} thumbnail of the center square of a
+     * {@link ImageFormat#YUV_420_888} image, reading only a few luma samples. The image is left
+     * open.
+     */
+    public void sampleLuma(final Image image, final SceneChangeGate gate) {
+        final Image.Plane luma = image.getPlanes()[0];
+        gate.sampleLuma(luma.getBuffer(), luma.getRowStride(), luma.getPixelStride(),
+                cropRegion.left, cropRegion.top, cropRegion.width(), cropRegion.height());
+    }
+
+    /**
+     * Builds the {@link SceneChangeGate} thumbnail of a bitmap returned by
+     * {@link #preprocessImage(Image)}.
+     */
+    public void sampleLuma(final Bitmap bitmap, final SceneChangeGate gate) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (gatePixels == null || gatePixels.length != width * height) {
+            gatePixels = new int[width * height];
         }
+        bitmap.getPixels(gatePixels, 0, width, 0, 0, width, height);
+        gate.sampleArgb(gatePixels, width, height);
     }
 
     /**
@@ -120,12 +336,53 @@ public class ImagePreprocessor {
         }
     }
 
-    static void cropAndRescaleBitmap(final Bitmap src, final Bitmap dst,
-                                     int sensorOrientation) {
+    /**
+     * Decodes the center square of the image opened by {@code decoder}, subsampled by the
+     * largest power of two that keeps it at least as large as {@code dst}, and rescales it into
+     * {@code dst}. Used for image files and uploads, which have no fixed size.
+     *
+     * @return false if the image could not be decoded.
+     */
+    public static boolean decodeCenterSquare(final BitmapRegionDecoder decoder, final Bitmap dst) {
+        final int minDim = CenterCrop.squareSize(decoder.getWidth(), decoder.getHeight());
+        final int left = (decoder.getWidth() - minDim) / 2;
+        final int top = (decoder.getHeight() - minDim) / 2;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Config.ARGB_8888;
+        options.inSampleSize = CenterCrop.computeSampleSize(minDim,
+                Math.max(dst.getWidth(), dst.getHeight()));
+        final Bitmap region = decoder.decodeRegion(
+                new Rect(left, top, left + minDim, top + minDim), options);
+        if (region == null) {
+            return false;
+        }
+        try {
+            cropAndRescaleBitmap(region, dst, 0);
+        } finally {
+            region.recycle();
+        }
+        return true;
+    }
+
+    public static void cropAndRescaleBitmap(final Bitmap src, final Bitmap dst,
+                                            int sensorOrientation) {
+        final Matrix matrix = new Matrix();
+        setCropTransform(matrix, src, dst, sensorOrientation);
+
+        final Canvas canvas = new Canvas(dst);
+        canvas.drawBitmap(src, matrix, null);
+    }
+
+    /**
+     * Sets {@code matrix} to the transform drawing the center square of {@code src} over
+     * {@code dst}, so it can be reused for every frame of the same size.
+     */
+    static void setCropTransform(final Matrix matrix, final Bitmap src, final Bitmap dst,
+                                 int sensorOrientation) {
         Assert.assertEquals(dst.getWidth(), dst.getHeight());
         final float minDim = Math.min(src.getWidth(), src.getHeight());
 
-        final Matrix matrix = new Matrix();
+        matrix.reset();
 
         // We only want the center square out of the original rectangle.
         final float translateX = -Math.max(0, (src.getWidth() - minDim) / 2);
@@ -141,8 +398,5 @@ public class ImagePreprocessor {
             matrix.postRotate(sensorOrientation);
             matrix.postTranslate(dst.getWidth() / 2.0f, dst.getHeight() / 2.0f);
         }
-
-        final Canvas canvas = new Canvas(dst);
-        canvas.drawBitmap(src, matrix, null);
     }
 }
\ No newline at end of file
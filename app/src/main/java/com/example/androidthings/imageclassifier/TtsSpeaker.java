@@ -84,6 +84,11 @@ public class TtsSpeaker {
         tts.speak("I'm ready!", TextToSpeech.QUEUE_ADD, null, UTTERANCE_ID);
     }
 
+    public void speakBusy(TextToSpeech tts) {
+        tts.speak("Sorry, I was too busy. Try again.", TextToSpeech.QUEUE_ADD, null,
+                UTTERANCE_ID);
+    }
+
     public void speakShutterSound(TextToSpeech tts) {
         getRandomElement(SHUTTER_SOUNDS).speak(tts);
     }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.batch;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+import com.example.androidthings.imageclassifier.classifier.InterpreterTuner;
+import com.example.androidthings.imageclassifier.classifier.TensorFlowImageClassifier;
+import com.example.androidthings.imageclassifier.metrics.PipelineMetrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Classifies every image of a directory, or of a list of files, and writes the results to a CSV
+ * or JSON lines file. Start it with:
+ *
+ * <pre>
+ * adb shell am startservice \
+ *     -n com.example.androidthings.imageclassifier/.batch.BatchClassificationService \
+ *     --es input /sdcard/frames --es output /sdcard/frames.csv
+ * </pre>
+ *
+ * {@code input} is either a directory, walked recursively, or a text file with one image path
+ * per line. The service is guarded by {@code android.permission.DUMP}, so only the shell can
+ * point it at paths.
+ */
+public class BatchClassificationService extends IntentService {
+
+    private static final String TAG = "BatchClassification";
+
+    public static final String EXTRA_INPUT = "input";
+    public static final String EXTRA_OUTPUT = "output";
+    public static final String EXTRA_BATCH_SIZE = "batch_size";
+
+    private static final int MODEL_INPUT_SIZE = 224;
+    private static final int DEFAULT_BATCH_SIZE = 8;
+    private static final List<String> IMAGE_EXTENSIONS =
+            Arrays.asList(".jpg", ".jpeg", ".png", ".webp");
+
+    public BatchClassificationService() {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null || intent.getStringExtra(EXTRA_INPUT) == null) {
+            Log.e(TAG, "Missing " + EXTRA_INPUT + " extra");
+            return;
+        }
+        File input = new File(intent.getStringExtra(EXTRA_INPUT));
+        File output = intent.getStringExtra(EXTRA_OUTPUT) != null
+                ? new File(intent.getStringExtra(EXTRA_OUTPUT))
+                : new File(getExternalFilesDir(null), "classifications.csv");
+        int batchSize = intent.getIntExtra(EXTRA_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        // Decoding overlaps with inference, so the two split the cores instead of both using all
+        int cores = Runtime.getRuntime().availableProcessors();
+        int decodeThreads = Math.max(1, cores / 2);
+        int interpreterThreads = Math.max(1, cores - decodeThreads);
+
+        TensorFlowImageClassifier classifier = null;
+        try (BatchResultWriter writer = BatchResultWriter.create(output)) {
+            List<File> files = listImages(input);
+            Log.i(TAG, "Classifying " + files.size() + " images from " + input + " into "
+                    + output);
+            classifier = new TensorFlowImageClassifier(
+                    TensorFlowImageClassifier.loadModel(this),
+                    TensorFlowImageClassifier.loadLabels(this),
+                    MODEL_INPUT_SIZE, MODEL_INPUT_SIZE,
+                    new InterpreterTuner.Config(interpreterThreads, false));
+            // Keep the latencies of the batch out of those of the camera pipeline
+            PipelineMetrics metrics = new PipelineMetrics();
+            classifier.setMetrics(metrics);
+            BatchClassifier batchClassifier =
+                    new BatchClassifier(classifier, MODEL_INPUT_SIZE, batchSize, decodeThreads);
+            Log.i(TAG, "Done: " + batchClassifier.classify(files, writer));
+            Log.i(TAG, "Latency summary: " + metrics.summary());
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Batch classification failed", e);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Batch classification interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            if (classifier != null) {
+                classifier.destroyClassifier();
+            }
+        }
+    }
+
+    private static List<File> listImages(File input) throws IOException {
+        List<File> files = new ArrayList<>();
+        if (input.isDirectory()) {
+            addImages(input, files);
+            return files;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(input), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    files.add(new File(line.trim()));
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void addImages(File directory, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                addImages(child, files);
+            } else if (isImage(child)) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static boolean isImage(File file) {
+        String name = file.getName().toLowerCase(Locale.US);
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && IMAGE_EXTENSIONS.contains(name.substring(dot));
+    }
+}
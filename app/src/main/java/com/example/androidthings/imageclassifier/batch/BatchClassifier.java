@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.batch;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.util.Log;
+
+import com.example.androidthings.imageclassifier.BitmapPool;
+import com.example.androidthings.imageclassifier.ImagePreprocessor;
+import com.example.androidthings.imageclassifier.classifier.Recognition;
+import com.example.androidthings.imageclassifier.classifier.TensorFlowImageClassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classifies a list of image files. Files are decoded in parallel, only their center square and
+ * subsampled close to the model input size, then classified in batches while the next images
+ * are decoded. Results are written in the order decoding completes, as soon as each batch is
+ * classified.
+ *
+ * <p>At most {@code decodeThreads * 2 + batchSize} decoded images are held at any time, however
+ * many files are classified.
+ */
+public class BatchClassifier {
+
+    private static final String TAG = "BatchClassifier";
+
+    /** How often progress is logged, in images. */
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    /**
+     * Throughput and time spent in each stage of a run.
+     */
+    public static class Stats {
+        private long images;
+        private long failures;
+        private final AtomicLong decodeNanos = new AtomicLong();
+        private long inferenceNanos;
+        private long writeNanos;
+        private long startNanos;
+        private long elapsedNanos;
+
+        public long getImages() {
+            return images;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public double getImagesPerSecond() {
+            return elapsedNanos == 0 ? 0 : images * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            final long classified = Math.max(1, images);
+            return String.format(Locale.US,
+                    "%d images (%d failed) in %.1f s, %.1f images/s. Per image: decode %.2f ms "
+                            + "(summed over decode threads), inference %.2f ms, write %.3f ms",
+                    images, failures, elapsedNanos / 1e9, getImagesPerSecond(),
+                    decodeNanos.get() / 1e6 / classified, inferenceNanos / 1e6 / classified,
+                    writeNanos / 1e6 / classified);
+        }
+    }
+
+    /** A decoded image, or the reason it could not be decoded. */
+    private static class Decoded {
+        final File file;
+        final Bitmap bitmap;
+        final String error;
+
+        Decoded(File file, Bitmap bitmap, String error) {
+            this.file = file;
+            this.bitmap = bitmap;
+            this.error = error;
+        }
+    }
+
+    private final TensorFlowImageClassifier classifier;
+    private final int inputSize;
+    private final int batchSize;
+    private final int decodeThreads;
+    private final int maxPendingDecodes;
+    private final BitmapPool bitmapPool;
+
+    /**
+     * @param classifier    used from the calling thread only.
+     * @param inputSize     side of the square model input.
+     * @param batchSize     images per interpreter invocation.
+     * @param decodeThreads number of files decoded in parallel.
+     */
+    public BatchClassifier(TensorFlowImageClassifier classifier, int inputSize, int batchSize,
+                           int decodeThreads) {
+        this.classifier = classifier;
+        this.inputSize = inputSize;
+        this.batchSize = batchSize;
+        this.decodeThreads = decodeThreads;
+        this.maxPendingDecodes = decodeThreads * 2;
+        this.bitmapPool = new BitmapPool(inputSize, inputSize, Bitmap.Config.ARGB_8888,
+                maxPendingDecodes + batchSize);
+    }
+
+    /**
+     * Classifies all {@code files}, writing one result per file to {@code writer}.
+     */
+    public Stats classify(List<File> files, BatchResultWriter writer)
+            throws IOException, InterruptedException {
+        final Stats stats = new Stats();
+        stats.startNanos = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(decodeThreads);
+        CompletionService<Decoded> decoded = new ExecutorCompletionService<>(executor);
+        List<Decoded> batch = new ArrayList<>(batchSize);
+        List<Bitmap> batchBitmaps = new ArrayList<>(batchSize);
+        try {
+            int submitted = 0;
+            int completed = 0;
+            while (completed < files.size()) {
+                while (submitted < files.size() && submitted - completed < maxPendingDecodes) {
+                    submitDecode(decoded, files.get(submitted++), stats);
+                }
+                Decoded image = takeDecoded(decoded);
+                completed++;
+                if (image.bitmap == null) {
+                    stats.failures++;
+                    writer.writeFailure(image.file.getPath(), image.error);
+                } else {
+                    batch.add(image);
+                }
+                if (batch.size() == batchSize
+                        || (completed == files.size() && !batch.isEmpty())) {
+                    classifyBatch(batch, batchBitmaps, writer, stats);
+                }
+                if (completed % PROGRESS_INTERVAL == 0) {
+                    stats.elapsedNanos = System.nanoTime() - stats.startNanos;
+                    Log.i(TAG, completed + "/" + files.size() + ": " + stats);
+                }
+            }
+            writer.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+        stats.elapsedNanos = System.nanoTime() - stats.startNanos;
+        return stats;
+    }
+
+    private void submitDecode(CompletionService<Decoded> decoded, final File file,
+                              final Stats stats) {
+        decoded.submit(new Callable<Decoded>() {
+            @Override
+            public Decoded call() {
+                final long start = System.nanoTime();
+                try {
+                    return decode(file);
+                } finally {
+                    stats.decodeNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    private static Decoded takeDecoded(CompletionService<Decoded> decoded)
+            throws InterruptedException {
+        try {
+            return decoded.take().get();
+        } catch (ExecutionException e) {
+            // decode() reports its own failures, so this is an Error the run cannot survive
+            throw new IllegalStateException("Decoding failed", e.getCause());
+        }
+    }
+
+    private void classifyBatch(List<Decoded> batch, List<Bitmap> batchBitmaps,
+                               BatchResultWriter writer, Stats stats) throws IOException {
+        batchBitmaps.clear();
+        for (Decoded image : batch) {
+            batchBitmaps.add(image.bitmap);
+        }
+
+        long start = System.nanoTime();
+        List<Collection<Recognition>> results;
+        try {
+            results = classifier.doRecognizeBatch(batchBitmaps);
+        } catch (RuntimeException e) {
+            // Record the failure against every file of the batch, and go on with the next one
+            Log.e(TAG, "Batch of " + batch.size() + " images failed", e);
+            results = null;
+        }
+        long classified = System.nanoTime();
+        stats.inferenceNanos += classified - start;
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (results != null) {
+                writer.write(batch.get(i).file.getPath(), results.get(i));
+            } else {
+                writer.writeFailure(batch.get(i).file.getPath(), "Classification failed");
+            }
+            bitmapPool.release(batch.get(i).bitmap);
+        }
+        stats.writeNanos += System.nanoTime() - classified;
+        if (results != null) {
+            stats.images += batch.size();
+        } else {
+            stats.failures += batch.size();
+        }
+        batch.clear();
+    }
+
+    /**
+     * Decodes the center square of {@code file}, subsampled by the largest power of two that
+     * keeps it at least as large as the model input, and rescales it to the input size.
+     */
+    private Decoded decode(File file) {
+        BitmapRegionDecoder decoder = null;
+        Bitmap cropped = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+            cropped = bitmapPool.acquire();
+            if (!ImagePreprocessor.decodeCenterSquare(decoder, cropped)) {
+                return new Decoded(file, null, "Cannot decode image");
+            }
+            Decoded decoded = new Decoded(file, cropped, null);
+            cropped = null;
+            return decoded;
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            // A bad or huge file only fails itself, not the rest of the run
+            return new Decoded(file, null, e.getClass().getSimpleName() + ": " + e.getMessage());
+        } finally {
+            if (cropped != null) {
+                bitmapPool.release(cropped);
+            }
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the fastest interpreter configuration for a model on the current device, by timing a
+ * few candidate configurations on a synthetic input. The choice is persisted per model file and
+ * device build, so the measurement only runs once.
+ */
+public class InterpreterTuner {
+
+    private static final String TAG = "InterpreterTuner";
+    private static final String PREFERENCES_NAME = "interpreter_tuning";
+
+    private static final int WARMUP_RUNS = 2;
+    private static final int TIMED_RUNS = 9;
+
+    /**
+     * Settings an {@link Interpreter} is created with.
+     */
+    public static class Config {
+        public static final Config DEFAULT = new Config(1, false);
+
+        public final int numThreads;
+        public final boolean useNnapi;
+
+        public Config(int numThreads, boolean useNnapi) {
+            this.numThreads = numThreads;
+            this.useNnapi = useNnapi;
+        }
+
+        public Interpreter createInterpreter(MappedByteBuffer model) {
+            Interpreter interpreter = new Interpreter(model, numThreads);
+            if (useNnapi) {
+                interpreter.setUseNNAPI(true);
+            }
+            return interpreter;
+        }
+
+        String serialize() {
+            return numThreads + "," + useNnapi;
+        }
+
+        static Config parse(String value) {
+            if (value == null) {
+                return null;
+            }
+            String[] parts = value.split(",");
+            try {
+                return new Config(Integer.parseInt(parts[0]), Boolean.parseBoolean(parts[1]));
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Ignoring invalid saved configuration " + value);
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "threads=" + numThreads + ", nnapi=" + useNnapi;
+        }
+    }
+
+    /**
+     * Return the saved configuration for this model and device, or measure the candidates and
+     * save the fastest.
+     *
+     * @param modelFile name of the model, used to key the saved choice.
+     * @param input     a buffer of the model input size, used as the synthetic input.
+     * @param output    an array of the model output shape.
+     */
+    public static Config getOrTune(Context context, String modelFile, MappedByteBuffer model,
+                                   ByteBuffer input, Object output) {
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String key = modelFile + ":" + model.capacity() + ":" + Build.DEVICE + ":"
+                + Build.FINGERPRINT;
+        Config saved = Config.parse(preferences.getString(key, null));
+        if (saved != null) {
+            Log.d(TAG, "Using saved interpreter configuration: " + saved);
+            return saved;
+        }
+
+        Config best = tune(model, input, output);
+        preferences.edit().putString(key, best.serialize()).apply();
+        return best;
+    }
+
+    /**
+     * Time every candidate configuration and return the one with the lowest median latency.
+     */
+    static Config tune(MappedByteBuffer model, ByteBuffer input, Object output) {
+        // A mid-gray image exercises the same code paths as a real frame
+        input.rewind();
+        while (input.hasRemaining()) {
+            input.put((byte) 0x80);
+        }
+
+        Config best = Config.DEFAULT;
+        long bestMedianNanos = Long.MAX_VALUE;
+        for (Config candidate : getCandidates()) {
+            long medianNanos;
+            try {
+                medianNanos = measure(candidate, model, input, output);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Interpreter configuration not supported: " + candidate, e);
+                continue;
+            }
+            Log.i(TAG, "Median inference time with " + candidate + ": "
+                    + medianNanos / 1000000f + " ms");
+            if (medianNanos < bestMedianNanos) {
+                bestMedianNanos = medianNanos;
+                best = candidate;
+            }
+        }
+        Log.i(TAG, "Selected interpreter configuration: " + best);
+        return best;
+    }
+
+    private static List<Config> getCandidates() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Config> candidates = new ArrayList<>();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            candidates.add(new Config(threads, false));
+        }
+        candidates.add(new Config(1, true));
+        return candidates;
+    }
+
+    private static long measure(Config config, MappedByteBuffer model, ByteBuffer input,
+                                Object output) {
+        Interpreter interpreter = config.createInterpreter(model);
+        try {
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                input.rewind();
+                interpreter.run(input, output);
+            }
+            long[] durations = new long[TIMED_RUNS];
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                input.rewind();
+                long start = SystemClock.elapsedRealtimeNanos();
+                interpreter.run(input, output);
+                durations[i] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+            Arrays.sort(durations);
+            return durations[TIMED_RUNS / 2];
+        } finally {
+            interpreter.close();
+        }
+    }
+}
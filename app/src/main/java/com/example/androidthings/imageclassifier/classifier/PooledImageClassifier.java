@@ -0,0 +1,234 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.example.androidthings.imageclassifier.metrics.PipelineMetrics;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classifies several images in parallel with a pool of interpreters. All interpreters share the
+ * same memory-mapped model and labels, and each one has its own input and output buffers.
+ * Every interpreter runs single-threaded, so throughput scales with the number of cores.
+ *
+ * <p>Images can be classified on the calling thread with {@link #recognize(Bitmap)}, or queued
+ * to the worker threads of the pool.
+ */
+public class PooledImageClassifier {
+
+    /**
+     * Receives results in the order images were submitted.
+     */
+    public interface ResultListener {
+        /**
+         * @param results the best classifications, or null if the image could not be classified.
+         */
+        void onResult(long sequence, Bitmap image, Collection<Recognition> results);
+    }
+
+    private static final String TAG = "PooledImageClassifier";
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    private final ModelDescriptor descriptor;
+    private final BlockingQueue<TensorFlowImageClassifier> idleClassifiers;
+    private final List<TensorFlowImageClassifier> allClassifiers;
+    private final ExecutorService executor;
+
+    private final InOrderDelivery<PendingResult> delivery = new InOrderDelivery<>(
+            new InOrderDelivery.Receiver<PendingResult>() {
+                @Override
+                public void deliver(long sequence, PendingResult result) {
+                    try {
+                        result.listener.onResult(sequence, result.image, result.results);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Result listener failed for image " + sequence, e);
+                    }
+                }
+            });
+
+    /**
+     * Creates a pool with one interpreter per available core, for the model described by
+     * {@code descriptor} in the app assets.
+     */
+    public PooledImageClassifier(Context context, ModelDescriptor descriptor)
+            throws IOException {
+        this(TensorFlowImageClassifier.loadModel(context, descriptor),
+                TensorFlowImageClassifier.loadLabels(context, descriptor), descriptor,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param model    the model, shared by the interpreters of the pool.
+     * @param poolSize images classified at the same time, each with its own interpreter.
+     */
+    public PooledImageClassifier(MappedByteBuffer model, List<String> labels,
+                                 ModelDescriptor descriptor, int poolSize) {
+        this.descriptor = descriptor;
+        idleClassifiers = new ArrayBlockingQueue<>(poolSize);
+        allClassifiers = new ArrayList<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            TensorFlowImageClassifier classifier = new TensorFlowImageClassifier(model, labels,
+                    descriptor, InterpreterTuner.Config.DEFAULT);
+            allClassifiers.add(classifier);
+            idleClassifiers.add(classifier);
+        }
+        executor = Executors.newFixedThreadPool(poolSize);
+    }
+
+    public int getPoolSize() {
+        return allClassifiers.size();
+    }
+
+    public ModelDescriptor getModelDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Record the latencies of every interpreter of the pool into {@code metrics}. Call before
+     * the first classification.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        for (TensorFlowImageClassifier classifier : allClassifiers) {
+            classifier.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * Classify an image on the calling thread, with the next interpreter that is free.
+     */
+    public Collection<Recognition> recognize(Bitmap image) throws InterruptedException {
+        TensorFlowImageClassifier classifier = idleClassifiers.take();
+        try {
+            return classifier.doRecognize(image);
+        } finally {
+            idleClassifiers.add(classifier);
+        }
+    }
+
+    /**
+     * Queue an image for classification on the next free interpreter. The image must not be
+     * modified until the returned future completes.
+     */
+    public Future<Collection<Recognition>> submit(final Bitmap image) {
+        return executor.submit(new Callable<Collection<Recognition>>() {
+            @Override
+            public Collection<Recognition> call() throws InterruptedException {
+                return recognize(image);
+            }
+        });
+    }
+
+    /**
+     * Queue an image for classification. {@code listener} is called from a pool thread, in
+     * submission order: a result that completes early is held until all earlier ones are
+     * delivered. An image that fails to classify is delivered with null results, so the ones
+     * after it are not held forever.
+     *
+     * @return the sequence number of the image, passed back to the listener.
+     */
+    public long submit(final Bitmap image, final ResultListener listener) {
+        final long sequence = delivery.nextSequence();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Collection<Recognition> results = null;
+                try {
+                    results = recognize(image);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Classification of image " + sequence + " failed", e);
+                } finally {
+                    delivery.complete(sequence, new PendingResult(image, results, listener));
+                }
+            }
+        });
+        return sequence;
+    }
+
+    /**
+     * Classify all images in parallel, and wait for the results.
+     *
+     * @return one result collection per image, in the order of {@code images}.
+     */
+    public List<Collection<Recognition>> recognizeAll(List<Bitmap> images)
+            throws InterruptedException {
+        List<Future<Collection<Recognition>>> futures = new ArrayList<>(images.size());
+        for (Bitmap image : images) {
+            futures.add(submit(image));
+        }
+        List<Collection<Recognition>> results = new ArrayList<>(images.size());
+        for (Future<Collection<Recognition>> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Classification failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stop the worker threads, and close the interpreters once the running classifications are
+     * done. Queued images are dropped.
+     */
+    public void destroyClassifier() {
+        executor.shutdownNow();
+        try {
+            // Also waits for classifications running on callers of recognize()
+            for (int i = 0; i < allClassifiers.size(); i++) {
+                TensorFlowImageClassifier classifier =
+                        idleClassifiers.poll(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (classifier == null) {
+                    Log.w(TAG, "Classification still running, leaving its interpreter open");
+                    return;
+                }
+                classifier.destroyClassifier();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PendingResult {
+        final Bitmap image;
+        final Collection<Recognition> results;
+        final ResultListener listener;
+
+        PendingResult(Bitmap image, Collection<Recognition> results, ResultListener listener) {
+            this.image = image;
+            this.results = results;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the active {@link TensorFlowImageClassifier} and replaces it with a model loaded from
+ * storage while classification goes on. The replacement is built and warmed up on a background
+ * thread, then swapped in atomically between two classifications. The previous classifier is
+ * closed once the classifications still using it are done.
+ *
+ * <p>Classify with {@link #acquire()} and {@link #release(TensorFlowImageClassifier)} around each
+ * use. A single classifier is still not thread safe, so it must not be used by several threads
+ * at once.
+ */
+public class SwappableClassifier {
+
+    private static final String TAG = "SwappableClassifier";
+
+    /** Inferences run on a new classifier before it replaces the active one. */
+    private static final int WARMUP_RUNS = 2;
+
+    /**
+     * Configures a new classifier before it becomes active, for example with the result cache
+     * and smoothing settings of the previous one.
+     */
+    public interface Initializer {
+        void initialize(TensorFlowImageClassifier classifier);
+    }
+
+    public interface SwapListener {
+        void onModelSwapped(ModelDescriptor descriptor, long loadMillis);
+
+        void onSwapFailed(ModelDescriptor descriptor, Exception e);
+    }
+
+    /**
+     * A classifier with a count of its users. The holder keeps one reference while the
+     * classifier is active, and the classifier is closed when the count drops to zero.
+     */
+    private static class Handle {
+        final TensorFlowImageClassifier classifier;
+        final AtomicInteger references = new AtomicInteger(1);
+
+        Handle(TensorFlowImageClassifier classifier) {
+            this.classifier = classifier;
+        }
+
+        boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    // Already closed, the caller must read the new active handle
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                classifier.destroyClassifier();
+            }
+        }
+    }
+
+    private final AtomicReference<Handle> active;
+    private final InterpreterTuner.Config config;
+    private final Initializer initializer;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+
+    /** Handles returned by acquire(), so release() does not depend on the active one. */
+    private final ThreadLocal<Handle> acquired = new ThreadLocal<>();
+
+    private boolean destroyed;
+
+    /**
+     * @param initial     the classifier active until the first swap.
+     * @param config      interpreter configuration of the classifiers loaded later.
+     * @param initializer applied to the classifiers loaded later, may be null.
+     */
+    public SwappableClassifier(TensorFlowImageClassifier initial, InterpreterTuner.Config config,
+                               Initializer initializer) {
+        this.active = new AtomicReference<>(new Handle(initial));
+        this.config = config;
+        this.initializer = initializer;
+    }
+
+    /**
+     * @return the active classifier, which stays open until {@link #release} even if another
+     * one is swapped in meanwhile.
+     */
+    public TensorFlowImageClassifier acquire() {
+        while (true) {
+            Handle handle = active.get();
+            if (handle.retain()) {
+                acquired.set(handle);
+                return handle.classifier;
+            }
+            if (active.get() == handle) {
+                // Swaps replace the active handle before closing it, so only destroy() gets here
+                throw new IllegalStateException("Classifier was destroyed");
+            }
+        }
+    }
+
+    /**
+     * Give back the classifier returned by the last {@link #acquire()} of this thread.
+     */
+    public void release(TensorFlowImageClassifier classifier) {
+        Handle handle = acquired.get();
+        if (handle == null || handle.classifier != classifier) {
+            throw new IllegalStateException("Classifier was not acquired by this thread");
+        }
+        acquired.remove();
+        handle.release();
+    }
+
+    /**
+     * @return the descriptor of the active model.
+     */
+    public ModelDescriptor getModelDescriptor() {
+        return active.get().classifier.getModelDescriptor();
+    }
+
+    /**
+     * Loads a model and its labels from storage in the background, and makes it the active one
+     * once it is warmed up. The model must take the same input as the active one, since frames
+     * are preprocessed for it.
+     */
+    public void swapFromStorage(final File modelFile, final File labelsFile,
+                                final SwapListener listener) {
+        final ModelDescriptor descriptor =
+                getModelDescriptor().withFiles(modelFile.getPath(), labelsFile.getPath());
+        swap(descriptor, listener, new Callable<TensorFlowImageClassifier>() {
+            @Override
+            public TensorFlowImageClassifier call() throws IOException {
+                MappedByteBuffer model =
+                        ModelLoader.prefetch(TensorFlowHelper.loadModelFile(modelFile));
+                List<String> labels = TensorFlowHelper.readLabels(labelsFile);
+                return new TensorFlowImageClassifier(model, labels, descriptor, config);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #swapFromStorage(File, File, SwapListener)} with a {@link ModelBundle}, which
+     * is verified first. A bundle taking another input than the active model is rejected.
+     */
+    public void swapFromBundle(final File bundleFile, final SwapListener listener) {
+        final ModelDescriptor current = getModelDescriptor();
+        swap(current.withFiles(bundleFile.getPath(), bundleFile.getPath()), listener,
+                new Callable<TensorFlowImageClassifier>() {
+                    @Override
+                    public TensorFlowImageClassifier call() throws IOException {
+                        ModelBundle bundle = ModelBundle.open(bundleFile);
+                        bundle.verify();
+                        if (!bundle.getDescriptor().hasSameInput(current)) {
+                            throw new IOException(bundle.getDescriptor()
+                                    + " does not take the same input as " + current);
+                        }
+                        return new TensorFlowImageClassifier(bundle, config);
+                    }
+                });
+    }
+
+    private void swap(final ModelDescriptor descriptor, final SwapListener listener,
+                      final Callable<TensorFlowImageClassifier> load) {
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                TensorFlowImageClassifier classifier = null;
+                try {
+                    classifier = load.call();
+                    classifier.warmUp(WARMUP_RUNS);
+                    if (initializer != null) {
+                        initializer.initialize(classifier);
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Could not load " + descriptor, e);
+                    if (classifier != null) {
+                        classifier.destroyClassifier();
+                    }
+                    if (listener != null) {
+                        listener.onSwapFailed(descriptor, e);
+                    }
+                    return;
+                }
+
+                synchronized (SwappableClassifier.this) {
+                    if (destroyed) {
+                        classifier.destroyClassifier();
+                        return;
+                    }
+                    Handle previous = active.getAndSet(new Handle(classifier));
+                    // Closes the previous classifier now, or when its last user releases it
+                    previous.release();
+                }
+                long loadMillis = SystemClock.uptimeMillis() - start;
+                final ModelDescriptor swapped = classifier.getModelDescriptor();
+                Log.i(TAG, "Swapped in " + swapped + " after " + loadMillis + " ms");
+                if (listener != null) {
+                    listener.onModelSwapped(swapped, loadMillis);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop loading models, and close the active classifier once it is released.
+     */
+    public synchronized void destroy() {
+        if (destroyed) {
+            return;
+        }
+        destroyed = true;
+        loader.shutdownNow();
+        active.get().release();
+    }
+}
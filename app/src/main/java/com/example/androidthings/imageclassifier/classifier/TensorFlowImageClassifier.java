@@ -20,11 +20,17 @@ import android.graphics.Bitmap;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.example.androidthings.imageclassifier.metrics.FrameTrace;
+import com.example.androidthings.imageclassifier.metrics.PipelineMetrics;
+
 import org.tensorflow.lite.Interpreter;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
@@ -35,12 +41,11 @@ public class TensorFlowImageClassifier {
 
     private static final String TAG = "TFImageClassifier";
 
-    private static final String LABELS_FILE = "labels.txt";
-    private static final String MODEL_FILE = "mobilenet_quant_v1_224.tflite";
-
     /** Dimensions of inputs. */
     private static final int DIM_BATCH_SIZE = 1;
-    private static final int DIM_PIXEL_SIZE = 3;
+
+    /** Tensor types, shapes and normalization of the model. */
+    private ModelDescriptor descriptor;
 
     /** Labels for categories that the TensorFlow model is trained for. */
     private List<String> labels;
@@ -48,33 +53,181 @@ public class TensorFlowImageClassifier {
     /** Cache to hold image data. */
     private ByteBuffer imgData = null;
 
-    /** Inference results (Tensorflow Lite output). */
-    private byte[][] confidencePerLabel = null;
+    /**
+     * Inference results (Tensorflow Lite output), a {@code byte[1][labels]} or
+     * {@code float[1][labels]} depending on the model.
+     */
+    private Object[] confidencePerLabel = null;
+
+    /** Picks the most confident labels out of {@link #confidencePerLabel} */
+    private TopKSelector topKSelector =
+            new TopKSelector(TensorFlowHelper.RESULTS_TO_SHOW, 0f);
+
+    /** Writes bitmap pixels into {@link #imgData} */
+    private TensorFiller tensorFiller;
 
     /** Pre-allocated buffer for intermediate bitmap pixels */
     private int[] intValues;
 
+    /** Optional cache of recent results, keyed by perceptual hash of the input image. */
+    private ResultCache resultCache;
+    private final PerceptualHash perceptualHash = new PerceptualHash();
+
+    /** Optional moving average of the outputs of consecutive images. */
+    private ProbabilitySmoother smoother;
+
+    private int inputImageWidth;
+    private int inputImageHeight;
+
+    /** Batch size the interpreter input is currently resized to. */
+    private int currentBatchSize = DIM_BATCH_SIZE;
+
+    /** Input and output storage for batches, sized for the largest batch seen so far. */
+    private ByteBuffer batchImgData;
+    private Object[] batchConfidencePerLabel;
+
+    /** Views of the batch storage matching each batch size, indexed by batch size. */
+    private ByteBuffer[] batchInputViews;
+    private Object[][] batchOutputViews;
+
+    private PipelineMetrics metrics = PipelineMetrics.getInstance();
+
     /** TensorFlow Lite engine */
     private Interpreter tfLite;
+    private InterpreterTuner.Config interpreterConfig;
 
     /**
      * Initializes a TensorFlow Lite session for classifying images.
      */
     public TensorFlowImageClassifier(Context context, int inputImageWidth, int inputImageHeight)
             throws IOException {
-        this.tfLite = new Interpreter(TensorFlowHelper.loadModelFile(context, MODEL_FILE));
-        this.labels = TensorFlowHelper.readLabels(context, LABELS_FILE);
+        this(context, inputImageWidth, inputImageHeight, false);
+    }
+
+    /**
+     * Initializes a TensorFlow Lite session for classifying images.
+     *
+     * @param autoTune pick the fastest interpreter configuration for this device, measuring it
+     *                 the first time the model is used. See {@link InterpreterTuner}.
+     */
+    public TensorFlowImageClassifier(Context context, int inputImageWidth, int inputImageHeight,
+                                     boolean autoTune) throws IOException {
+        this(context, ModelDescriptor.MOBILENET_QUANT_V1_224
+                .withInputSize(inputImageWidth, inputImageHeight), autoTune);
+    }
+
+    /**
+     * Initializes a TensorFlow Lite session for classifying images with the model described by
+     * {@code descriptor}, loaded from the app assets.
+     */
+    public TensorFlowImageClassifier(Context context, ModelDescriptor descriptor,
+                                     boolean autoTune) throws IOException {
+        this(context, ModelLoader.prefetch(loadModel(context, descriptor)),
+                loadLabels(context, descriptor), descriptor, autoTune);
+    }
+
+    /**
+     * Initializes a TensorFlow Lite session for classifying images with the model, labels and
+     * metadata of {@code bundle}. Call {@link ModelBundle#verify()} first to check it.
+     */
+    public TensorFlowImageClassifier(Context context, ModelBundle bundle, boolean autoTune) {
+        this(context, bundle.getModel(), bundle.getLabels(), bundle.getDescriptor(), autoTune);
+    }
+
+    private TensorFlowImageClassifier(Context context, MappedByteBuffer model,
+                                      List<String> labels, ModelDescriptor descriptor,
+                                      boolean autoTune) {
+        allocateBuffers(descriptor, labels);
 
-        imgData =
-                ByteBuffer.allocateDirect(
-                        DIM_BATCH_SIZE * inputImageWidth * inputImageHeight * DIM_PIXEL_SIZE);
+        InterpreterTuner.Config config = autoTune
+                ? InterpreterTuner.getOrTune(context, descriptor.getModelFile(), model, imgData,
+                        confidencePerLabel)
+                : InterpreterTuner.Config.DEFAULT;
+        this.interpreterConfig = config;
+        this.tfLite = config.createInterpreter(model);
+    }
+
+    /**
+     * Initializes a TensorFlow Lite session on an already loaded model. Several classifiers can
+     * share the same model and labels, each one having its own interpreter and buffers.
+     */
+    public TensorFlowImageClassifier(MappedByteBuffer model, List<String> labels,
+                                     int inputImageWidth, int inputImageHeight,
+                                     InterpreterTuner.Config config) {
+        this(model, labels, ModelDescriptor.MOBILENET_QUANT_V1_224
+                .withInputSize(inputImageWidth, inputImageHeight), config);
+    }
+
+    public TensorFlowImageClassifier(MappedByteBuffer model, List<String> labels,
+                                     ModelDescriptor descriptor,
+                                     InterpreterTuner.Config config) {
+        allocateBuffers(descriptor, labels);
+        this.interpreterConfig = config;
+        this.tfLite = config.createInterpreter(model);
+    }
+
+    public TensorFlowImageClassifier(ModelBundle bundle, InterpreterTuner.Config config) {
+        this(bundle.getModel(), bundle.getLabels(), bundle.getDescriptor(), config);
+    }
+
+    private void allocateBuffers(ModelDescriptor descriptor, List<String> labels) {
+        this.descriptor = descriptor;
+        this.labels = labels;
+        this.inputImageWidth = descriptor.getInputWidth();
+        this.inputImageHeight = descriptor.getInputHeight();
+
+        imgData = ByteBuffer.allocateDirect(DIM_BATCH_SIZE * descriptor.getInputSizeInBytes());
         imgData.order(ByteOrder.nativeOrder());
-        confidencePerLabel = new byte[1][labels.size()];
+        confidencePerLabel = descriptor.createOutput(DIM_BATCH_SIZE, labels.size());
 
-        // Pre-allocate buffer for image pixels.
+        tensorFiller = descriptor.createTensorFiller();
         intValues = new int[inputImageWidth * inputImageHeight];
     }
 
+    /**
+     * Memory-map the model this classifier runs, so it can be shared between classifiers.
+     */
+    public static MappedByteBuffer loadModel(Context context) throws IOException {
+        return loadModel(context, ModelDescriptor.MOBILENET_QUANT_V1_224);
+    }
+
+    public static MappedByteBuffer loadModel(Context context, ModelDescriptor descriptor)
+            throws IOException {
+        return TensorFlowHelper.loadModelFile(context, descriptor.getModelFile());
+    }
+
+    public static List<String> loadLabels(Context context) {
+        return loadLabels(context, ModelDescriptor.MOBILENET_QUANT_V1_224);
+    }
+
+    public static List<String> loadLabels(Context context, ModelDescriptor descriptor) {
+        return TensorFlowHelper.readLabels(context, descriptor.getLabelsFile());
+    }
+
+    public ModelDescriptor getModelDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * @return the interpreter configuration, the tuned one if the classifier was auto-tuned.
+     */
+    public InterpreterTuner.Config getInterpreterConfig() {
+        return interpreterConfig;
+    }
+
+    /**
+     * Runs throwaway inferences on the current input buffer, so the interpreter allocates its
+     * tensors and the model pages are resident before the first real image. Results, the cache
+     * and smoothing are left untouched.
+     */
+    public void warmUp(int runs) {
+        imgData.rewind();
+        resizeInput(DIM_BATCH_SIZE);
+        for (int i = 0; i < runs; i++) {
+            tfLite.run(imgData, confidencePerLabel);
+        }
+    }
+
     /**
      * Clean up the resources used by the classifier.
      */
@@ -90,16 +243,229 @@ public class TensorFlowImageClassifier {
      *              and power consuming.
      */
     public Collection<Recognition> doRecognize(Bitmap image) {
-        TensorFlowHelper.convertBitmapToByteBuffer(image, intValues, imgData);
+        long start = FrameTrace.begin(FrameTrace.GET_PIXELS);
+        final long getPixelsNanos;
+        try {
+            image.getPixels(intValues, 0, inputImageWidth, 0, 0, inputImageWidth,
+                    inputImageHeight);
+        } finally {
+            getPixelsNanos = FrameTrace.end(FrameTrace.GET_PIXELS, start);
+        }
+        final ResultCache cache = activeResultCache();
+        long hash = 0;
+        if (cache != null) {
+            hash = perceptualHash.compute(intValues, inputImageWidth, inputImageHeight);
+            List<Recognition> cached = cache.get(hash);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        start = FrameTrace.begin(FrameTrace.TENSOR_FILL);
+        final long fillNanos;
+        try {
+            imgData.rewind();
+            tensorFiller.fill(intValues, imgData);
+        } finally {
+            fillNanos = FrameTrace.end(FrameTrace.TENSOR_FILL, start);
+        }
+        metrics.record(PipelineMetrics.Stage.TENSOR_FILL, getPixelsNanos + fillNanos);
+        List<Recognition> results = doRecognize(imgData);
+        if (cache != null) {
+            results = cache.put(hash, results);
+        }
+        return results;
+    }
+
+    /**
+     * @return the direct buffer the model reads its input from, in the input format of the
+     * {@link #getModelDescriptor() model}. Callers that produce the input themselves can write it
+     * here and call {@link #doRecognizeInputBuffer()}, skipping the intermediate {@link Bitmap}.
+     */
+    public ByteBuffer getInputBuffer() {
+        return imgData;
+    }
+
+    /**
+     * Classify the image currently held in the {@link #getInputBuffer() input buffer}.
+     */
+    public Collection<Recognition> doRecognizeInputBuffer() {
+        return doRecognizeInput(imgData);
+    }
+
+    /**
+     * Classify an image already converted to the model input format, reusing the results of a
+     * similar recent image like {@link #doRecognize(Bitmap)} does.
+     */
+    public Collection<Recognition> doRecognizeInput(ByteBuffer input) {
+        final ResultCache cache = activeResultCache();
+        // Hashing reads RGB bytes, so only uint8 inputs can be cached
+        if (cache == null || descriptor.getInputType() != ModelDescriptor.DataType.UINT8) {
+            return doRecognize(input);
+        }
+        final long hash = perceptualHash.compute(input, inputImageWidth, inputImageHeight);
+        List<Recognition> results = cache.get(hash);
+        if (results == null) {
+            results = cache.put(hash, doRecognize(input));
+        }
+        return results;
+    }
+
+    /**
+     * Classify an image already converted to the model input format, for example by
+     * {@link TensorFiller}, always running the model. The buffer is read from its start.
+     */
+    public List<Recognition> doRecognize(ByteBuffer input) {
+        input.rewind();
+        resizeInput(DIM_BATCH_SIZE);
+        final long inferenceStart = FrameTrace.begin(FrameTrace.INFERENCE);
+        final long inferenceNanos;
+        try {
+            // Here's where the magic happens!!!
+            tfLite.run(input, confidencePerLabel);
+        } finally {
+            inferenceNanos = FrameTrace.end(FrameTrace.INFERENCE, inferenceStart);
+        }
+        metrics.record(PipelineMetrics.Stage.INFERENCE, inferenceNanos);
+        final long topKStart = FrameTrace.begin(FrameTrace.TOP_K);
+
+        // Get the results with the highest confidence and map them to their labels
+        final List<Recognition> results;
+        final long topKNanos;
+        try {
+            final Object output = confidencePerLabel[0];
+            if (smoother != null) {
+                if (output instanceof byte[]) {
+                    smoother.update((byte[]) output, descriptor.getOutputScale(),
+                            descriptor.getOutputZeroPoint());
+                } else {
+                    smoother.update((float[]) output);
+                }
+                results = topKSelector.select(smoother.getProbabilities(), labels);
+            } else {
+                results = selectResults(output);
+            }
+        } finally {
+            topKNanos = FrameTrace.end(FrameTrace.TOP_K, topKStart);
+        }
+        metrics.record(PipelineMetrics.Stage.TOP_K, topKNanos);
+        return results;
+    }
+
+    /**
+     * @return the cache to use for single images, or null. The smoother has to see the output of
+     * every image, so the cache is left aside while smoothing.
+     */
+    private ResultCache activeResultCache() {
+        return smoother == null ? resultCache : null;
+    }
 
+    private List<Recognition> selectResults(Object output) {
+        if (output instanceof byte[]) {
+            return topKSelector.select((byte[]) output, labels, descriptor.getOutputScale(),
+                    descriptor.getOutputZeroPoint());
+        }
+        return topKSelector.select((float[]) output, labels);
+    }
+
+    /**
+     * Classify several images with a single interpreter invocation, amortizing its overhead.
+     *
+     * @param images bitmaps of the classifier input size.
+     * @return one result collection per image, in the order of {@code images}.
+     */
+    public List<Collection<Recognition>> doRecognizeBatch(List<Bitmap> images) {
+        final int batchSize = images.size();
+        List<Collection<Recognition>> results = new ArrayList<>(batchSize);
+        if (batchSize == 0) {
+            return results;
+        }
+
+        ensureBatchCapacity(batchSize);
+        if (batchInputViews[batchSize] == null) {
+            ByteBuffer view = batchImgData.duplicate();
+            view.limit(batchSize * tensorFiller.getImageSizeInBytes());
+            batchInputViews[batchSize] = view.slice().order(ByteOrder.nativeOrder());
+            batchOutputViews[batchSize] = Arrays.copyOf(batchConfidencePerLabel, batchSize);
+        }
+        final ByteBuffer input = batchInputViews[batchSize];
+        final Object[] output = batchOutputViews[batchSize];
+
+        input.rewind();
+        for (Bitmap image : images) {
+            image.getPixels(intValues, 0, inputImageWidth, 0, 0,
+                    inputImageWidth, inputImageHeight);
+            tensorFiller.fill(intValues, input);
+        }
+        input.rewind();
+
+        resizeInput(batchSize);
         long startTime = SystemClock.uptimeMillis();
-        // Here's where the magic happens!!!
-        tfLite.run(imgData, confidencePerLabel);
+        tfLite.run(input, output);
         long endTime = SystemClock.uptimeMillis();
-        Log.d(TAG, "Timecost to run model inference: " + Long.toString(endTime - startTime));
+        Log.d(TAG, "Timecost to run model inference on " + batchSize + " images: "
+                + Long.toString(endTime - startTime));
 
-        // Get the results with the highest confidence and map them to their labels
-        return TensorFlowHelper.getBestResults(confidencePerLabel, labels);
+        for (int i = 0; i < batchSize; i++) {
+            results.add(selectResults(output[i]));
+        }
+        return results;
+    }
+
+    private void ensureBatchCapacity(int batchSize) {
+        if (batchConfidencePerLabel != null && batchConfidencePerLabel.length >= batchSize) {
+            return;
+        }
+        batchImgData = ByteBuffer.allocateDirect(batchSize * tensorFiller.getImageSizeInBytes());
+        batchImgData.order(ByteOrder.nativeOrder());
+        batchConfidencePerLabel = descriptor.createOutput(batchSize, labels.size());
+        batchInputViews = new ByteBuffer[batchSize + 1];
+        batchOutputViews = new Object[batchSize + 1][];
+    }
+
+    private void resizeInput(int batchSize) {
+        if (batchSize != currentBatchSize) {
+            tfLite.resizeInput(0, descriptor.getInputShape(batchSize));
+            currentBatchSize = batchSize;
+        }
+    }
+
+    /**
+     * Reuse the results of a recently classified image when the new one looks the same, instead
+     * of running the model. Pass {@code null} to always run the model. Batches are never cached,
+     * and neither are single images while {@link #setSmoothing(float) smoothing} is on.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Pick the results of single images from a moving average of the outputs of the latest
+     * images, weighting the newest one by {@code alpha}. Pass 0 to use each output alone.
+     * Batches are never smoothed. While smoothing, the {@link #setResultCache result cache} is
+     * not used, as replayed results would skip frames of the average.
+     */
+    public void setSmoothing(float alpha) {
+        smoother = alpha > 0f ? new ProbabilitySmoother(labels.size(), alpha) : null;
+    }
+
+    /**
+     * Record the tensor fill, inference and top-K latencies into {@code metrics} instead of the
+     * shared {@link PipelineMetrics#getInstance() pipeline metrics}, for classifiers that do not
+     * work on camera frames. Call before the first classification.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Change how many results are returned, and the confidence they need to be returned at all.
+     */
+    public void setResultsFilter(int maxResults, float minConfidence) {
+        topKSelector = new TopKSelector(maxResults, minConfidence);
+        if (resultCache != null) {
+            resultCache.clear();
+        }
     }
 
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.http;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.util.Log;
+
+import com.example.androidthings.imageclassifier.BitmapPool;
+import com.example.androidthings.imageclassifier.ImagePreprocessor;
+import com.example.androidthings.imageclassifier.classifier.ModelDescriptor;
+import com.example.androidthings.imageclassifier.classifier.PooledImageClassifier;
+import com.example.androidthings.imageclassifier.classifier.Recognition;
+import com.example.androidthings.imageclassifier.metrics.FrameTrace;
+import com.example.androidthings.imageclassifier.metrics.PipelineMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Classifies JPEG and PNG images posted to {@value #PATH}, so other devices on the network can
+ * use the classifier of this one. Uploads go through the same center crop and rescaling as
+ * camera frames, and the best results are returned as JSON:
+ * <pre>
+ * {"model":"...","inference_ms":21.4,"results":[{"id":"3","label":"...","confidence":0.9}]}
+ * </pre>
+ *
+ * <p>Every worker of the server has an interpreter of a {@link PooledImageClassifier} on the
+ * shared model, so up to
+ * {@code workerCount} images are classified in parallel. Requests arriving while the workers
+ * and the queue are full get a 503, and bodies over the size limit a 413, before anything is
+ * decoded. The result cache and smoothing of the camera classifier are not used, since uploads
+ * are unrelated to each other, and latencies are recorded apart from the camera pipeline.
+ */
+public class InferenceEndpoint implements Closeable {
+
+    private static final String TAG = "InferenceEndpoint";
+
+    public static final String PATH = "/classify";
+
+    /** Larger images are refused, since a small compressed upload can hold a huge image. */
+    private static final long MAX_IMAGE_PIXELS = 50L * 1000 * 1000;
+
+    private final LocalHttpServer server;
+    private final ModelDescriptor descriptor;
+    private final PooledImageClassifier classifiers;
+    private final BitmapPool bitmapPool;
+    private final PipelineMetrics metrics = new PipelineMetrics();
+
+    /**
+     * @param model        the model, shared by the interpreters of all workers.
+     * @param bindAddress  interface to listen on, or null for all interfaces.
+     * @param port         port to listen on, or 0 for any free port.
+     * @param workerCount  images classified at the same time, each with its own interpreter.
+     * @param queueSize    requests waiting for a worker before new ones are turned away.
+     * @param maxBodyBytes larger uploads are answered with a 413.
+     */
+    public InferenceEndpoint(MappedByteBuffer model, List<String> labels,
+                             ModelDescriptor descriptor, InetAddress bindAddress, int port,
+                             int workerCount, int queueSize, int maxBodyBytes) {
+        this.descriptor = descriptor;
+        classifiers = new PooledImageClassifier(model, labels, descriptor, workerCount);
+        classifiers.setMetrics(metrics);
+        bitmapPool = new BitmapPool(descriptor.getInputWidth(), descriptor.getInputHeight(),
+                Bitmap.Config.ARGB_8888, workerCount);
+
+        server = new LocalHttpServer(bindAddress, port, workerCount, queueSize, maxBodyBytes);
+        server.addHandler(PATH, new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return classify(request);
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        server.start();
+        Log.i(TAG, "Classifying uploads on port " + server.getPort() + " with "
+                + classifiers.getPoolSize() + " workers");
+    }
+
+    /**
+     * @return the port the endpoint listens on, once started.
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * @return the latencies of the uploads classified so far.
+     */
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stop serving, and close the interpreters once the running classifications are done.
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        classifiers.destroyClassifier();
+    }
+
+    private LocalHttpServer.Response classify(LocalHttpServer.Request request) {
+        if (!"POST".equals(request.getMethod())) {
+            return LocalHttpServer.Response.text(405, "POST a JPEG or PNG image\n");
+        }
+        final String mediaType = mediaType(request.getHeader("Content-Type"));
+        if (!"image/jpeg".equals(mediaType) && !"image/png".equals(mediaType)) {
+            return LocalHttpServer.Response.text(415, "Content-Type must be image/jpeg or "
+                    + "image/png\n");
+        }
+        final byte[] body = request.getBody();
+        // Each upload is a frame of its own in the trace
+        FrameTrace.startFrame();
+
+        BitmapRegionDecoder decoder = null;
+        Bitmap input = null;
+        try {
+            try {
+                decoder = BitmapRegionDecoder.newInstance(body, 0, body.length, false);
+            } catch (IOException e) {
+                decoder = null;
+            }
+            if (decoder == null) {
+                return LocalHttpServer.Response.text(400, "Cannot decode image\n");
+            }
+            if ((long) decoder.getWidth() * decoder.getHeight() > MAX_IMAGE_PIXELS) {
+                return LocalHttpServer.Response.text(413, "Image larger than "
+                        + MAX_IMAGE_PIXELS + " pixels\n");
+            }
+            input = bitmapPool.acquire();
+            if (!ImagePreprocessor.decodeCenterSquare(decoder, input)) {
+                return LocalHttpServer.Response.text(400, "Cannot decode image\n");
+            }
+
+            // There are as many interpreters as workers, so this never waits for one
+            final long start = System.nanoTime();
+            Collection<Recognition> results = classifiers.recognize(input);
+            final long inferenceNanos = System.nanoTime() - start;
+            return LocalHttpServer.Response.json(200, toJson(results, inferenceNanos));
+        } catch (IllegalArgumentException e) {
+            return LocalHttpServer.Response.text(400, "Cannot decode image: " + e.getMessage()
+                    + "\n");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return LocalHttpServer.Response.text(503, "Shutting down\n");
+        } finally {
+            if (input != null) {
+                bitmapPool.release(input);
+            }
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    private String toJson(Collection<Recognition> results, long inferenceNanos) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"model\":");
+        appendString(json, descriptor.getModelFile());
+        json.append(",\"inference_ms\":")
+                .append(String.format(Locale.US, "%.1f", inferenceNanos / 1e6));
+        json.append(",\"results\":[");
+        boolean first = true;
+        for (Recognition recognition : results) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"id\":");
+            appendString(json, recognition.getId());
+            json.append(",\"label\":");
+            appendString(json, recognition.getTitle());
+            json.append(",\"confidence\":")
+                    .append(String.format(Locale.US, "%.4f", recognition.getConfidence()));
+            json.append('}');
+        }
+        json.append("]}\n");
+        return json.toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * @return the media type of a Content-Type header, without its parameters, or null.
+     */
+    private static String mediaType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        final int semicolon = contentType.indexOf(';');
+        if (semicolon >= 0) {
+            contentType = contentType.substring(0, semicolon);
+        }
+        return contentType.trim().toLowerCase(Locale.US);
+    }
+}
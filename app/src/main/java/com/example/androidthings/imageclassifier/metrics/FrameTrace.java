@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.metrics;
+
+import android.os.Trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Spans around the work done for each frame. Every span is an {@link Trace} section, shown by
+ * systrace, and is also kept by the shared {@link TraceRecorder}, so the last seconds can be
+ * dumped on a device that was not being traced.
+ *
+ * <pre>
+ * final long start = FrameTrace.begin(FrameTrace.DECODE);
+ * final long decodeNanos;
+ * try {
+ *     ...
+ * } finally {
+ *     decodeNanos = FrameTrace.end(FrameTrace.DECODE, start);
+ * }
+ * metrics.record(PipelineMetrics.Stage.DECODE, decodeNanos);
+ * </pre>
+ *
+ * Sections must end on the thread that began them, in reverse order, also when an exception is
+ * thrown: a section left open on a long-lived thread swallows everything it does afterwards.
+ */
+public final class FrameTrace {
+
+    /* Span names, matching the labels of the PipelineMetrics stages they overlap with */
+    public static final String DECODE = PipelineMetrics.Stage.DECODE.getLabel();
+    public static final String CROP_RESIZE = PipelineMetrics.Stage.CROP_RESIZE.getLabel();
+    public static final String GET_PIXELS = "get_pixels";
+    public static final String TENSOR_FILL = PipelineMetrics.Stage.TENSOR_FILL.getLabel();
+    public static final String INFERENCE = PipelineMetrics.Stage.INFERENCE.getLabel();
+    public static final String TOP_K = PipelineMetrics.Stage.TOP_K.getLabel();
+    public static final String SHOW_BITMAP = "show_bitmap";
+    public static final String SHOW_RESULTS = "show_results";
+    public static final String TTS_START = PipelineMetrics.Stage.TTS_START.getLabel();
+
+    private static final TraceRecorder RECORDER = TraceRecorder.getInstance();
+
+    private FrameTrace() {
+    }
+
+    /**
+     * Starts a new frame on the calling thread, tagging its later spans.
+     *
+     * @return the id of the frame, for {@link #setFrame(long)} on the threads it is handed to.
+     */
+    public static long startFrame() {
+        return RECORDER.startFrame();
+    }
+
+    /**
+     * Tags later spans of the calling thread with {@code frameId}.
+     */
+    public static void setFrame(long frameId) {
+        RECORDER.setCurrentFrame(frameId);
+    }
+
+    /**
+     * @return the frame the calling thread works on.
+     */
+    public static long currentFrame() {
+        return RECORDER.getCurrentFrame();
+    }
+
+    /**
+     * Begins a span. {@code name} should be a constant.
+     *
+     * @return the start time, to pass to {@link #end(String, long)}.
+     */
+    public static long begin(String name) {
+        Trace.beginSection(name);
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends the span begun by {@link #begin(String)} on this thread.
+     *
+     * @return the duration of the span in nanoseconds.
+     */
+    public static long end(String name, long startNanos) {
+        final long endNanos = System.nanoTime();
+        Trace.endSection();
+        RECORDER.record(name, startNanos, endNanos);
+        return endNanos - startNanos;
+    }
+
+    /**
+     * Writes the spans of the last {@code windowMillis} to {@code file} as a Chrome trace.
+     *
+     * @return the number of spans written.
+     */
+    public static int dump(File file, long windowMillis) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)) {
+            return RECORDER.writeChromeTrace(out, windowMillis * 1000000L);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * A fixed-capacity FIFO queue between two pipeline stages, with an explicit policy for what
+ * happens when the producer is faster than the consumer. Items that get dropped are handed to a
+ * {@link DropListener} so their resources can be released.
+ */
+public class BoundedQueue<T> {
+
+    public enum OverflowPolicy {
+        /** The producer waits until the consumer makes room. */
+        BLOCK,
+        /** The oldest queued item is dropped to make room for the new one. */
+        DROP_OLDEST,
+        /** The new item is dropped, keeping the queued ones. */
+        DROP_NEWEST
+    }
+
+    public interface DropListener<T> {
+        void onDropped(T item);
+    }
+
+    private final String mName;
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+    private final DropListener<T> mDropListener;
+    private final ArrayDeque<T> mItems;
+
+    private long mOfferedCount;
+    private long mDroppedCount;
+    private int mMaxDepth;
+
+    public BoundedQueue(String name, int capacity, OverflowPolicy policy,
+                        DropListener<T> dropListener) {
+        mName = name;
+        mCapacity = capacity;
+        mPolicy = policy;
+        mDropListener = dropListener;
+        mItems = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Add an item, applying the overflow policy if the queue is full.
+     *
+     * @return false if {@code item} itself was dropped.
+     */
+    public boolean offer(T item) throws InterruptedException {
+        T dropped = null;
+        boolean accepted = true;
+        synchronized (this) {
+            mOfferedCount++;
+            if (mItems.size() >= mCapacity) {
+                switch (mPolicy) {
+                    case BLOCK:
+                        while (mItems.size() >= mCapacity) {
+                            wait();
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        dropped = mItems.poll();
+                        mDroppedCount++;
+                        break;
+                    case DROP_NEWEST:
+                        dropped = item;
+                        accepted = false;
+                        mDroppedCount++;
+                        break;
+                }
+            }
+            if (accepted) {
+                mItems.add(item);
+                mMaxDepth = Math.max(mMaxDepth, mItems.size());
+                notifyAll();
+            }
+        }
+        // Release outside of the lock, listeners may take their time
+        if (dropped != null && mDropListener != null) {
+            mDropListener.onDropped(dropped);
+        }
+        return accepted;
+    }
+
+    /**
+     * Wait for an item and remove it from the queue.
+     */
+    public synchronized T take() throws InterruptedException {
+        while (mItems.isEmpty()) {
+            wait();
+        }
+        T item = mItems.poll();
+        notifyAll();
+        return item;
+    }
+
+    /**
+     * Drop all queued items.
+     */
+    public void clear() {
+        T item;
+        while ((item = poll()) != null) {
+            if (mDropListener != null) {
+                mDropListener.onDropped(item);
+            }
+        }
+    }
+
+    /**
+     * Release an item that will never make it into the queue.
+     */
+    public void discard(T item) {
+        if (mDropListener != null) {
+            mDropListener.onDropped(item);
+        }
+    }
+
+    private synchronized T poll() {
+        T item = mItems.poll();
+        if (item != null) {
+            notifyAll();
+        }
+        return item;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized int size() {
+        return mItems.size();
+    }
+
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized long getOfferedCount() {
+        return mOfferedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s: depth %d/%d (max %d), %d offered, %d dropped",
+                mName, mItems.size(), mCapacity, mMaxDepth, mOfferedCount, mDroppedCount);
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.pipeline;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.androidthings.imageclassifier.classifier.Recognition;
+import com.example.androidthings.imageclassifier.classifier.SwappableClassifier;
+import com.example.androidthings.imageclassifier.classifier.TensorFlowImageClassifier;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Runs classification requests on a single thread that owns the classifier, in order of
+ * priority and then deadline. User-initiated requests always run before background ones, and
+ * requests that can no longer finish before their deadline are dropped without running.
+ *
+ * <p>Inference cannot be preempted, so a user-initiated request waits at most for the inference
+ * already running plus its own. Background requests only use the time left over, and are
+ * bounded by a {@link BoundedQueue.OverflowPolicy} like the queues between pipeline stages.
+ */
+public class ClassificationScheduler {
+    private static final String TAG = "ClassificationScheduler";
+
+    /** Number of recent latencies kept per priority to compute percentiles. */
+    private static final int LATENCY_SAMPLES = 256;
+
+    /** Weight of the latest inference in the running estimate of inference time. */
+    private static final float INFERENCE_ESTIMATE_WEIGHT = 0.2f;
+
+    public enum Priority {
+        /** A button press or screen tap, waiting for an answer. */
+        USER_INITIATED,
+        /** Continuous or bulk work, run when nothing more urgent is waiting. */
+        BACKGROUND
+    }
+
+    /**
+     * The work to do with exclusive access to the classifier.
+     */
+    public interface Job {
+        Collection<Recognition> run(TensorFlowImageClassifier classifier);
+    }
+
+    /**
+     * Called on the scheduler thread with the outcome of a request.
+     */
+    public interface Callback {
+        void onClassified(Collection<Recognition> results);
+
+        /**
+         * The request was dropped without results: it could not meet its deadline, was turned
+         * away by the overflow policy, or its job failed.
+         */
+        void onDropped();
+    }
+
+    private static class Request implements Comparable<Request> {
+        final Priority priority;
+        final long deadlineMillis;
+        final long submittedMillis;
+        final long sequence;
+        final Job job;
+        final Callback callback;
+
+        Request(Priority priority, long deadlineMillis, long submittedMillis, long sequence,
+                Job job, Callback callback) {
+            this.priority = priority;
+            this.deadlineMillis = deadlineMillis;
+            this.submittedMillis = submittedMillis;
+            this.sequence = sequence;
+            this.job = job;
+            this.callback = callback;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            if (deadlineMillis != other.deadlineMillis) {
+                return Long.compare(deadlineMillis, other.deadlineMillis);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Latencies and outcomes of the requests of one priority.
+     */
+    private static class PriorityStats {
+        final long[] latencies = new long[LATENCY_SAMPLES];
+        int latencyCount;
+        long completed;
+        long missedDeadline;
+        long pushedOut;
+        long failed;
+
+        void recordLatency(long latencyMillis) {
+            latencies[latencyCount++ % LATENCY_SAMPLES] = latencyMillis;
+            completed++;
+        }
+
+        long percentile(float fraction) {
+            int count = Math.min(latencyCount, LATENCY_SAMPLES);
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) (fraction * count))];
+        }
+    }
+
+    private final SwappableClassifier mClassifier;
+    private final int mMaxBackgroundRequests;
+    private final BoundedQueue.OverflowPolicy mOverflowPolicy;
+    private final PriorityQueue<Request> mQueue = new PriorityQueue<>();
+    private final PriorityStats[] mStats = new PriorityStats[Priority.values().length];
+    private int mBackgroundRequests;
+    private int mMaxBackgroundDepth;
+    private long mNextSequence;
+    private float mInferenceEstimateMillis;
+    private Thread mThread;
+
+    /**
+     * @param maxBackgroundRequests background requests kept waiting at most. Must be at least 1.
+     *                              When exceeded, the oldest one is dropped.
+     */
+    public ClassificationScheduler(TensorFlowImageClassifier classifier,
+                                   int maxBackgroundRequests) {
+        this(new SwappableClassifier(classifier, classifier.getInterpreterConfig(), null),
+                maxBackgroundRequests, BoundedQueue.OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Runs each request on the classifier active when it starts, so models can be swapped while
+     * requests are waiting.
+     *
+     * @param maxBackgroundRequests background requests kept waiting at most. Must be at least 1.
+     * @param overflowPolicy        what to do with a background request submitted while
+     *                              {@code maxBackgroundRequests} are waiting. With
+     *                              {@link BoundedQueue.OverflowPolicy#BLOCK}, {@link #submit}
+     *                              waits for one of them to start.
+     */
+    public ClassificationScheduler(SwappableClassifier classifier, int maxBackgroundRequests,
+                                   BoundedQueue.OverflowPolicy overflowPolicy) {
+        if (maxBackgroundRequests < 1) {
+            throw new IllegalArgumentException(
+                    "maxBackgroundRequests must be at least 1: " + maxBackgroundRequests);
+        }
+        mClassifier = classifier;
+        mMaxBackgroundRequests = maxBackgroundRequests;
+        mOverflowPolicy = overflowPolicy;
+        for (int i = 0; i < mStats.length; i++) {
+            mStats[i] = new PriorityStats();
+        }
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "ClassificationScheduler");
+        mThread.start();
+    }
+
+    /**
+     * Stop the scheduler thread, dropping the waiting requests.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Request request;
+        while ((request = poll()) != null) {
+            request.callback.onDropped();
+        }
+    }
+
+    /**
+     * Queue a request.
+     *
+     * @param deadlineMillis {@link SystemClock#uptimeMillis()} time after which the result is
+     *                       no longer useful.
+     */
+    public void submit(Priority priority, long deadlineMillis, Job job, Callback callback) {
+        Request dropped = null;
+        synchronized (this) {
+            Request request = new Request(priority, deadlineMillis, SystemClock.uptimeMillis(),
+                    mNextSequence++, job, callback);
+            if (priority == Priority.BACKGROUND && mBackgroundRequests >= mMaxBackgroundRequests) {
+                switch (mOverflowPolicy) {
+                    case BLOCK:
+                        try {
+                            while (mBackgroundRequests >= mMaxBackgroundRequests) {
+                                wait();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            dropped = request;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        dropped = removeOldestBackgroundRequest();
+                        break;
+                    case DROP_NEWEST:
+                        dropped = request;
+                        break;
+                }
+                if (dropped != null) {
+                    mStats[Priority.BACKGROUND.ordinal()].pushedOut++;
+                }
+            }
+            if (dropped != request) {
+                mQueue.add(request);
+                if (priority == Priority.BACKGROUND) {
+                    mMaxBackgroundDepth = Math.max(mMaxBackgroundDepth, ++mBackgroundRequests);
+                }
+                notifyAll();
+            }
+        }
+        if (dropped != null) {
+            dropped.callback.onDropped();
+        }
+    }
+
+    private Request removeOldestBackgroundRequest() {
+        Request oldest = null;
+        for (Request request : mQueue) {
+            if (request.priority == Priority.BACKGROUND
+                    && (oldest == null || request.sequence < oldest.sequence)) {
+                oldest = request;
+            }
+        }
+        mQueue.remove(oldest);
+        mBackgroundRequests--;
+        return oldest;
+    }
+
+    private synchronized Request take() throws InterruptedException {
+        while (mQueue.isEmpty()) {
+            wait();
+        }
+        return removeHead();
+    }
+
+    private synchronized Request poll() {
+        return mQueue.isEmpty() ? null : removeHead();
+    }
+
+    private Request removeHead() {
+        Request request = mQueue.poll();
+        if (request.priority == Priority.BACKGROUND) {
+            mBackgroundRequests--;
+            // Wakes up submitters blocked on a full backlog
+            notifyAll();
+        }
+        return request;
+    }
+
+    private void loop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Request request = take();
+                long start = SystemClock.uptimeMillis();
+                PriorityStats stats = mStats[request.priority.ordinal()];
+                boolean missedDeadline;
+                synchronized (this) {
+                    missedDeadline =
+                            start + (long) mInferenceEstimateMillis > request.deadlineMillis;
+                    if (missedDeadline) {
+                        stats.missedDeadline++;
+                    }
+                }
+                if (missedDeadline) {
+                    request.callback.onDropped();
+                    continue;
+                }
+
+                TensorFlowImageClassifier classifier = mClassifier.acquire();
+                Collection<Recognition> results;
+                try {
+                    results = request.job.run(classifier);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Classification failed", e);
+                    synchronized (this) {
+                        stats.failed++;
+                    }
+                    request.callback.onDropped();
+                    continue;
+                } finally {
+                    mClassifier.release(classifier);
+                }
+                long end = SystemClock.uptimeMillis();
+                synchronized (this) {
+                    mInferenceEstimateMillis += INFERENCE_ESTIMATE_WEIGHT
+                            * ((end - start) - mInferenceEstimateMillis);
+                    stats.recordLatency(end - request.submittedMillis);
+                }
+                request.callback.onClassified(results);
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Scheduler stopped");
+        }
+    }
+
+    /**
+     * @return a percentile, between 0 and 1, of the latency of recent requests of a priority,
+     * from submission to result.
+     */
+    public synchronized long getLatencyPercentile(Priority priority, float fraction) {
+        return mStats[priority.ordinal()].percentile(fraction);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "scheduler: %d waiting (background %d/%d, max %d), inference ~%.0f ms",
+                mQueue.size(), mBackgroundRequests, mMaxBackgroundRequests, mMaxBackgroundDepth,
+                mInferenceEstimateMillis));
+        for (Priority priority : Priority.values()) {
+            PriorityStats stats = mStats[priority.ordinal()];
+            sb.append(String.format(Locale.US,
+                    "; %s: %d done (p50 %d ms, p99 %d ms), %d missed deadline, %d pushed out, "
+                            + "%d failed",
+                    priority, stats.completed, stats.percentile(0.5f), stats.percentile(0.99f),
+                    stats.missedDeadline, stats.pushedOut, stats.failed));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.pipeline;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * One step of a pipeline, running on its own thread. It takes items from its input queue,
+ * processes them and offers the results to its output queue, so that a slow stage only delays
+ * the items behind it instead of every other step.
+ *
+ * <p>An item whose processing throws is logged and discarded through the input queue, so its
+ * resources are released and the stage moves on to the next one.
+ */
+public class PipelineStage<I, O> {
+    private static final String TAG = "PipelineStage";
+
+    public interface Processor<I, O> {
+        /**
+         * @return the item to pass on to the next stage, or null to pass nothing.
+         */
+        O process(I item);
+    }
+
+    private final String mName;
+    private final BoundedQueue<I> mInput;
+    private final BoundedQueue<O> mOutput;
+    private final Processor<I, O> mProcessor;
+    private Thread mThread;
+
+    private volatile long mProcessedCount;
+    private volatile long mFailedCount;
+    private volatile long mBusyMillis;
+
+    /**
+     * @param output the queue of the next stage, or null if this is the last one.
+     */
+    public PipelineStage(String name, BoundedQueue<I> input, Processor<I, O> processor,
+                         BoundedQueue<O> output) {
+        mName = name;
+        mInput = input;
+        mProcessor = processor;
+        mOutput = output;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, mName);
+        mThread.start();
+    }
+
+    /**
+     * Stop the stage thread, waiting for the item being processed to complete.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    private void loop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                I item = mInput.take();
+                long start = SystemClock.uptimeMillis();
+                O result;
+                try {
+                    result = mProcessor.process(item);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, mName + " failed, dropping the item", e);
+                    mFailedCount++;
+                    mInput.discard(item);
+                    continue;
+                }
+                mBusyMillis += SystemClock.uptimeMillis() - start;
+                mProcessedCount++;
+                if (result != null && mOutput != null) {
+                    try {
+                        mOutput.offer(result);
+                    } catch (InterruptedException e) {
+                        mOutput.discard(result);
+                        throw e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, mName + " stopped");
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getProcessedCount() {
+        return mProcessedCount;
+    }
+
+    public long getFailedCount() {
+        return mFailedCount;
+    }
+
+    @Override
+    public String toString() {
+        long processed = mProcessedCount;
+        return String.format(Locale.US, "%s: %d processed, %.1f ms average, %d failed", mName,
+                processed, processed == 0 ? 0f : (float) mBusyMillis / processed, mFailedCount);
+    }
+}
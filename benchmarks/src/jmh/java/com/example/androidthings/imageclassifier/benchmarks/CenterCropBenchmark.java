@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.benchmarks;
+
+import com.example.androidthings.imageclassifier.CenterCrop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Center crop and resize of a camera frame to the model input size. The device path scales with
+ * {@code Canvas} in {@code ImagePreprocessor.cropAndRescaleBitmap}; this measures the same
+ * center square math on {@code int[]} pixels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CenterCropBenchmark {
+
+    @Param({"128", "160", "192", "224", "299"})
+    public int size;
+
+    private int[] frame;
+    private int[] cropped;
+    private int[] columns;
+    private int[] rows;
+
+    @Setup
+    public void setUp() {
+        frame = BenchmarkImages.randomPixels(
+                BenchmarkImages.FRAME_WIDTH * BenchmarkImages.FRAME_HEIGHT);
+        cropped = new int[size * size];
+        final int minDim = CenterCrop.squareSize(
+                BenchmarkImages.FRAME_WIDTH, BenchmarkImages.FRAME_HEIGHT);
+        columns = CenterCrop.centerCropSamples(BenchmarkImages.FRAME_WIDTH, minDim, size);
+        rows = CenterCrop.centerCropSamples(BenchmarkImages.FRAME_HEIGHT, minDim, size);
+    }
+
+    /** Computes the sample tables on every call. */
+    @Benchmark
+    public int[] cropAndResize() {
+        CenterCrop.cropAndResize(frame, BenchmarkImages.FRAME_WIDTH,
+                BenchmarkImages.FRAME_HEIGHT, cropped, size, size);
+        return cropped;
+    }
+
+    /** Reuses sample tables computed once, as the preprocessors do. */
+    @Benchmark
+    public int[] cropAndResizePrecomputed() {
+        CenterCrop.cropAndResize(frame, BenchmarkImages.FRAME_WIDTH, columns, rows, cropped);
+        return cropped;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.benchmarks;
+
+import com.example.androidthings.imageclassifier.classifier.LabelLoader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a labels file from storage, which happens on every classifier start.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LabelLoadingBenchmark {
+
+    @Param({"1001", "5000", "21843"})
+    public int labelCount;
+
+    private File labelsFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        labelsFile = File.createTempFile("labels", ".txt");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(labelsFile), "UTF-8")) {
+            for (String label : BenchmarkImages.labels(labelCount)) {
+                writer.write(label);
+                writer.write('\n');
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        labelsFile.delete();
+    }
+
+    @Benchmark
+    public List<String> readLabels() throws IOException {
+        return LabelLoader.readLabels(labelsFile);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.benchmarks;
+
+import com.example.androidthings.imageclassifier.classifier.TensorFiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pixel to tensor conversion, comparing the per-byte loop of
+ * {@code TensorFlowHelper.convertBitmapToByteBuffer} with {@link TensorFiller}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TensorFillBenchmark {
+
+    @Param({"128", "160", "192", "224", "299"})
+    public int size;
+
+    private int[] pixels;
+    private ByteBuffer uint8Data;
+    private ByteBuffer float32Data;
+    private TensorFiller uint8Filler;
+    private TensorFiller float32Filler;
+
+    @Setup
+    public void setUp() {
+        pixels = BenchmarkImages.randomPixels(size * size);
+        uint8Filler = TensorFiller.uint8(size, size);
+        float32Filler = TensorFiller.float32(size, size, 127.5f, 127.5f);
+        uint8Data = ByteBuffer.allocateDirect(uint8Filler.getImageSizeInBytes());
+        uint8Data.order(ByteOrder.nativeOrder());
+        float32Data = ByteBuffer.allocateDirect(float32Filler.getImageSizeInBytes());
+        float32Data.order(ByteOrder.nativeOrder());
+    }
+
+    @Benchmark
+    public ByteBuffer perByteUint8() {
+        uint8Data.rewind();
+        for (int i = 0; i < pixels.length; i++) {
+            final int val = pixels[i];
+            uint8Data.put((byte) ((val >> 16) & 0xFF));
+            uint8Data.put((byte) ((val >> 8) & 0xFF));
+            uint8Data.put((byte) (val & 0xFF));
+        }
+        return uint8Data;
+    }
+
+    @Benchmark
+    public ByteBuffer tensorFillerUint8() {
+        uint8Data.rewind();
+        uint8Filler.fill(pixels, uint8Data);
+        return uint8Data;
+    }
+
+    @Benchmark
+    public ByteBuffer tensorFillerFloat32() {
+        float32Data.rewind();
+        float32Filler.fill(pixels, float32Data);
+        return float32Data;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.benchmarks;
+
+import com.example.androidthings.imageclassifier.classifier.Recognition;
+import com.example.androidthings.imageclassifier.classifier.TopKSelector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Top-K post-processing of a model output, as done by {@code TensorFlowHelper.getBestResults}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TopKBenchmark {
+
+    @Param({"1001", "5000", "21843"})
+    public int labelCount;
+
+    @Param({"3"})
+    public int maxResults;
+
+    private List<String> labels;
+    private byte[] quantizedConfidences;
+    private float[] floatConfidences;
+    private TopKSelector selector;
+
+    @Setup
+    public void setUp() {
+        labels = BenchmarkImages.labels(labelCount);
+        quantizedConfidences = BenchmarkImages.randomConfidences(labelCount);
+        floatConfidences = new float[labelCount];
+        for (int i = 0; i < labelCount; i++) {
+            floatConfidences[i] = (quantizedConfidences[i] & 0xff) / 255.0f;
+        }
+        selector = new TopKSelector(maxResults, 0f);
+    }
+
+    @Benchmark
+    public List<Recognition> selectQuantized() {
+        return selector.select(quantizedConfidences, labels);
+    }
+
+    @Benchmark
+    public List<Recognition> selectFloat() {
+        return selector.select(floatConfidences, labels);
+    }
+}
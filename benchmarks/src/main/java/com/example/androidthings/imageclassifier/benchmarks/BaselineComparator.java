@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares JMH CSV results with the checked-in baseline. Every benchmark here reports an average
+ * time or allocated bytes per operation, so a higher score is a regression. A score is only a
+ * regression when it grew by more than the allowed fraction and its confidence interval lies
+ * entirely above the one of the baseline; a larger change within the error bars is reported as
+ * noise. Exits with status 1 on a regression, and with status 2 when the baseline has no scores,
+ * since nothing could be compared.
+ *
+ * <p>Usage: {@code BaselineComparator baseline.csv results.csv [maxRegression]}
+ */
+public class BaselineComparator {
+
+    /** Secondary result of the GC profiler that is stable enough to compare between runs. */
+    private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    private static final double DEFAULT_MAX_REGRESSION = 0.10;
+
+    /** A score and the half width of its 99.9% confidence interval. */
+    static class Score {
+        final double score;
+        final double error;
+
+        Score(double score, double error) {
+            this.score = score;
+            // A single measurement has no error estimate
+            this.error = Double.isNaN(error) ? 0 : error;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparator baseline.csv results.csv [maxRegression]");
+            System.exit(2);
+        }
+        final double maxRegression =
+                args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_MAX_REGRESSION;
+        Map<String, Score> baseline = readScores(new File(args[0]));
+        Map<String, Score> results = readScores(new File(args[1]));
+        if (baseline.isEmpty()) {
+            System.err.println("No scores in " + args[0] + ", run updateBaseline first");
+            System.exit(2);
+        }
+
+        int regressions = 0;
+        for (Map.Entry<String, Score> entry : results.entrySet()) {
+            final Score expected = baseline.get(entry.getKey());
+            final Score result = entry.getValue();
+            if (expected == null) {
+                System.out.println("NEW         " + entry.getKey() + " " + result.score);
+                continue;
+            }
+            // Allocation of a few bytes per op is noise, not a regression
+            final double change = expected.score > 0.5
+                    ? (result.score - expected.score) / expected.score
+                    : result.score - expected.score;
+            final boolean separated =
+                    result.score - result.error > expected.score + expected.error;
+            final String status;
+            if (change <= maxRegression) {
+                status = "OK";
+            } else if (separated) {
+                status = "REGRESSION";
+                regressions++;
+            } else {
+                status = "NOISE";
+            }
+            System.out.println(String.format("%-11s %s %.3f +- %.3f -> %.3f +- %.3f (%+.1f%%)",
+                    status, entry.getKey(), expected.score, expected.error, result.score,
+                    result.error, change * 100));
+        }
+        System.out.println(regressions + " regression(s) above "
+                + Math.round(maxRegression * 100) + "%");
+        if (regressions > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the score and error of each benchmark, keyed by benchmark name and parameters.
+     */
+    static Map<String, Score> readScores(File csvFile) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(csvFile), "UTF-8"))) {
+            String line = reader.readLine();
+            if (line == null) {
+                return scores;
+            }
+            List<String> header = splitCsvLine(line);
+            final int scoreColumn = header.indexOf("Score");
+            final int errorColumn = header.indexOf("Score Error (99.9%)");
+            final int firstParamColumn = header.indexOf("Unit") + 1;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                List<String> row = splitCsvLine(line);
+                String benchmark = row.get(0);
+                if (benchmark.indexOf(':') >= 0 && !benchmark.endsWith(ALLOCATION_METRIC)) {
+                    continue;
+                }
+                StringBuilder key = new StringBuilder(withoutPackage(benchmark));
+                for (int i = firstParamColumn; i < row.size() && i < header.size(); i++) {
+                    if (!row.get(i).isEmpty()) {
+                        key.append(' ').append(header.get(i).replace("Param: ", ""))
+                                .append('=').append(row.get(i));
+                    }
+                }
+                scores.put(key.toString(), new Score(Double.parseDouble(row.get(scoreColumn)),
+                        errorColumn < 0 || row.get(errorColumn).isEmpty()
+                                ? 0 : Double.parseDouble(row.get(errorColumn))));
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * @return {@code Class.method}, and the secondary metric if any, of a benchmark name.
+     */
+    private static String withoutPackage(String benchmark) {
+        final int end = benchmark.indexOf(':') < 0 ? benchmark.length() : benchmark.indexOf(':');
+        final int methodStart = benchmark.lastIndexOf('.', end);
+        return benchmark.substring(benchmark.lastIndexOf('.', methodStart - 1) + 1);
+    }
+
+    private static List<String> splitCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier;
+
+/**
+ * Center crop and resize math shared by the camera preprocessing and headless callers. Works on
+ * sizes and ARGB packed {@code int[]} pixels, without any Android dependency.
+ */
+public class CenterCrop {
+
+    private CenterCrop() {
+    }
+
+    /**
+     * @return the side of the largest square that fits in a {@code width} x {@code height} image.
+     */
+    public static int squareSize(int width, int height) {
+        return Math.min(width, height);
+    }
+
+    /**
+     * @return the largest power of two that, used as a subsampling factor, keeps
+     * {@code srcSize} at least {@code dstSize} pixels.
+     */
+    public static int computeSampleSize(int srcSize, int dstSize) {
+        int sampleSize = 1;
+        while (srcSize / (sampleSize * 2) >= dstSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * For each of the {@code dstSize} output samples, compute the source coordinate to read when
+     * resizing the centered {@code cropSize} span of a {@code srcSize} dimension.
+     */
+    public static int[] centerCropSamples(int srcSize, int cropSize, int dstSize) {
+        final int offset = (srcSize - cropSize) / 2;
+        final int[] samples = new int[dstSize];
+        for (int i = 0; i < dstSize; i++) {
+            samples[i] = offset + (int) (((long) (2 * i + 1) * cropSize) / (2 * dstSize));
+        }
+        return samples;
+    }
+
+    /**
+     * Crops the center square of {@code src} and resizes it to {@code dstWidth} x
+     * {@code dstHeight} by nearest neighbour sampling.
+     *
+     * @param src ARGB pixels of a {@code srcWidth} x {@code srcHeight} image, row-major.
+     * @param dst receives the resized pixels, row-major. Must not be {@code src}.
+     */
+    public static void cropAndResize(int[] src, int srcWidth, int srcHeight,
+                                     int[] dst, int dstWidth, int dstHeight) {
+        final int minDim = squareSize(srcWidth, srcHeight);
+        cropAndResize(src, srcWidth, centerCropSamples(srcWidth, minDim, dstWidth),
+                centerCropSamples(srcHeight, minDim, dstHeight), dst);
+    }
+
+    /**
+     * Same as {@link #cropAndResize(int[], int, int, int[], int, int)}, with sample tables
+     * computed once by {@link #centerCropSamples(int, int, int)} for repeated calls.
+     */
+    public static void cropAndResize(int[] src, int srcWidth, int[] columns, int[] rows,
+                                     int[] dst) {
+        int out = 0;
+        for (int srcY : rows) {
+            final int rowOffset = srcY * srcWidth;
+            for (int srcX : columns) {
+                dst[out++] = src[rowOffset + srcX];
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides which frames are worth classifying by comparing a small luma thumbnail of each frame
+ * with a background model. A frame passes when its mean absolute difference from the background
+ * exceeds a threshold, or when no frame passed for longer than the maximum staleness.
+ *
+ * <p>Skipped frames are blended into the background, which absorbs sensor noise and slow
+ * lighting drift. A passing frame replaces the background, so the next change is measured
+ * against the scene the last results describe.
+ *
+ * <p>Not thread safe.
+ */
+public class SceneChangeGate {
+
+    /** Pixels averaged per thumbnail cell, along each side. */
+    private static final int SAMPLES_PER_CELL = 4;
+
+    private final int thumbnailSize;
+    private final float changeThreshold;
+    private final float backgroundAdaptation;
+    private final long maxStalenessMillis;
+
+    private final int[] thumbnail;
+    private final float[] background;
+    private boolean hasBackground;
+    private long lastPassMillis;
+    private float lastChange;
+
+    private long passes;
+    private long stalePasses;
+    private long skips;
+
+    /**
+     * @param thumbnailSize        side of the luma thumbnail, in cells.
+     * @param changeThreshold      mean absolute luma difference, from 0 to 255, above which a
+     *                             frame passes.
+     * @param backgroundAdaptation weight of a skipped frame in the background, from 0 to 1.
+     * @param maxStalenessMillis   a frame passes anyway when none did for this long.
+     */
+    public SceneChangeGate(int thumbnailSize, float changeThreshold, float backgroundAdaptation,
+                           long maxStalenessMillis) {
+        this.thumbnailSize = thumbnailSize;
+        this.changeThreshold = changeThreshold;
+        this.backgroundAdaptation = backgroundAdaptation;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.thumbnail = new int[thumbnailSize * thumbnailSize];
+        this.background = new float[thumbnailSize * thumbnailSize];
+    }
+
+    /**
+     * Builds the thumbnail of the next frame from ARGB pixels.
+     *
+     * @param pixels ARGB pixels of a {@code width} x {@code height} image, row-major.
+     */
+    public void sampleArgb(int[] pixels, int width, int height) {
+        final int samples = thumbnailSize * SAMPLES_PER_CELL;
+        for (int cellY = 0; cellY < thumbnailSize; cellY++) {
+            for (int cellX = 0; cellX < thumbnailSize; cellX++) {
+                int sum = 0;
+                for (int sy = 0; sy < SAMPLES_PER_CELL; sy++) {
+                    final int y = samplePosition(cellY * SAMPLES_PER_CELL + sy, samples, height);
+                    for (int sx = 0; sx < SAMPLES_PER_CELL; sx++) {
+                        final int x =
+                                samplePosition(cellX * SAMPLES_PER_CELL + sx, samples, width);
+                        final int val = pixels[y * width + x];
+                        sum += (77 * ((val >> 16) & 0xFF) + 150 * ((val >> 8) & 0xFF)
+                                + 29 * (val & 0xFF)) >> 8;
+                    }
+                }
+                thumbnail[cellY * thumbnailSize + cellX] =
+                        sum / (SAMPLES_PER_CELL * SAMPLES_PER_CELL);
+            }
+        }
+    }
+
+    /**
+     * Builds the thumbnail of the next frame straight from a luma plane, reading only the
+     * {@code width} x {@code height} region at {@code left}, {@code top}.
+     */
+    public void sampleLuma(ByteBuffer plane, int rowStride, int pixelStride,
+                           int left, int top, int width, int height) {
+        final int samples = thumbnailSize * SAMPLES_PER_CELL;
+        for (int cellY = 0; cellY < thumbnailSize; cellY++) {
+            for (int cellX = 0; cellX < thumbnailSize; cellX++) {
+                int sum = 0;
+                for (int sy = 0; sy < SAMPLES_PER_CELL; sy++) {
+                    final int rowOffset = (top + samplePosition(
+                            cellY * SAMPLES_PER_CELL + sy, samples, height)) * rowStride;
+                    for (int sx = 0; sx < SAMPLES_PER_CELL; sx++) {
+                        final int x = left
+                                + samplePosition(cellX * SAMPLES_PER_CELL + sx, samples, width);
+                        sum += plane.get(rowOffset + x * pixelStride) & 0xFF;
+                    }
+                }
+                thumbnail[cellY * thumbnailSize + cellX] =
+                        sum / (SAMPLES_PER_CELL * SAMPLES_PER_CELL);
+            }
+        }
+    }
+
+    /**
+     * @return the center of sample {@code index} out of {@code count} over {@code size} pixels.
+     */
+    private static int samplePosition(int index, int count, int size) {
+        return (int) (((long) (2 * index + 1) * size) / (2 * count));
+    }
+
+    /**
+     * Compares the last sampled thumbnail with the background and updates it.
+     *
+     * @return true if the frame should be classified.
+     */
+    public boolean shouldClassify(long nowMillis) {
+        if (!hasBackground) {
+            lastChange = Float.MAX_VALUE;
+            return pass(nowMillis);
+        }
+
+        float totalChange = 0;
+        for (int i = 0; i < thumbnail.length; i++) {
+            totalChange += Math.abs(thumbnail[i] - background[i]);
+        }
+        lastChange = totalChange / thumbnail.length;
+
+        if (lastChange > changeThreshold) {
+            return pass(nowMillis);
+        }
+        if (nowMillis - lastPassMillis >= maxStalenessMillis) {
+            stalePasses++;
+            return pass(nowMillis);
+        }
+        skips++;
+        for (int i = 0; i < thumbnail.length; i++) {
+            background[i] += backgroundAdaptation * (thumbnail[i] - background[i]);
+        }
+        return false;
+    }
+
+    private boolean pass(long nowMillis) {
+        for (int i = 0; i < thumbnail.length; i++) {
+            background[i] = thumbnail[i];
+        }
+        hasBackground = true;
+        lastPassMillis = nowMillis;
+        passes++;
+        return true;
+    }
+
+    /**
+     * Forget the background, so the next frame passes.
+     */
+    public void reset() {
+        hasBackground = false;
+    }
+
+    /**
+     * @return the mean absolute luma difference of the last frame from the background.
+     */
+    public float getLastChange() {
+        return lastChange;
+    }
+
+    /**
+     * @return frames that passed, including the ones passed by the staleness timer.
+     */
+    public long getPassCount() {
+        return passes;
+    }
+
+    /**
+     * @return frames that passed only because the staleness timer fired.
+     */
+    public long getStalePassCount() {
+        return stalePasses;
+    }
+
+    public long getSkipCount() {
+        return skips;
+    }
+
+    /**
+     * @return the fraction of frames that passed, from 0 to 1.
+     */
+    public float getPassRate() {
+        final long frames = passes + skips;
+        return frames == 0 ? 0 : (float) passes / frames;
+    }
+
+    @Override
+    public String toString() {
+        return "SceneChangeGate{passed=" + passes + " (" + stalePasses + " stale), skipped="
+                + skips + ", passRate=" + Math.round(getPassRate() * 100) + "%}";
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs independent startup steps concurrently, one thread each, and records when each step
+ * started and how long it took. Startup is as long as its slowest step instead of the sum of
+ * all of them.
+ *
+ * <p>Steps must not depend on each other. Work that does should go in the same step.
+ */
+public class StartupOrchestrator {
+
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    /**
+     * When a step ran, relative to the start of {@link #run()}.
+     */
+    public static class StepTiming {
+        private final String name;
+        private final long startNanos;
+        private final long durationNanos;
+        private final Throwable failure;
+
+        StepTiming(String name, long startNanos, long durationNanos, Throwable failure) {
+            this.name = name;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.failure = failure;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public long getEndNanos() {
+            return startNanos + durationNanos;
+        }
+
+        /**
+         * @return what the step threw, or null if it completed.
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+    }
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Step> steps = new ArrayList<>();
+    private List<StepTiming> timeline;
+    private long totalNanos;
+
+    public void addStep(String name, Step step) {
+        if (timeline != null) {
+            throw new IllegalStateException("Startup already ran");
+        }
+        names.add(name);
+        steps.add(step);
+    }
+
+    /**
+     * Runs all the steps and waits for them to finish, even if some of them fail.
+     *
+     * @return the timing of each step, in the order they were added.
+     * @throws IllegalStateException wrapping the exception of the first step, in the order they
+     *                               were added, that failed.
+     * @throws Error                 the error of that step itself, such as an
+     *                               {@link OutOfMemoryError}.
+     */
+    public List<StepTiming> run() throws InterruptedException {
+        if (timeline != null) {
+            throw new IllegalStateException("Startup already ran");
+        }
+        final int count = steps.size();
+        final StepTiming[] timings = new StepTiming[count];
+        final CountDownLatch done = new CountDownLatch(count);
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final long stepStart = System.nanoTime();
+                    Throwable failure = null;
+                    try {
+                        steps.get(index).run();
+                    } catch (Throwable t) {
+                        // Errors too, so the timeline shows which step hit them
+                        failure = t;
+                    } finally {
+                        final long stepEnd = System.nanoTime();
+                        timings[index] = new StepTiming(names.get(index), stepStart - start,
+                                stepEnd - stepStart, failure);
+                        done.countDown();
+                    }
+                }
+            }, "startup-" + names.get(i));
+            thread.start();
+        }
+        done.await();
+        totalNanos = System.nanoTime() - start;
+
+        List<StepTiming> result = new ArrayList<>(count);
+        for (StepTiming timing : timings) {
+            result.add(timing);
+        }
+        timeline = result;
+        for (StepTiming timing : timeline) {
+            if (timing.getFailure() instanceof Error) {
+                throw (Error) timing.getFailure();
+            } else if (timing.getFailure() != null) {
+                throw new IllegalStateException("Startup step " + timing.getName() + " failed",
+                        timing.getFailure());
+            }
+        }
+        return timeline;
+    }
+
+    /**
+     * @return the time {@link #run()} took, in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return one line per step with its start, end and duration in milliseconds, followed by
+     * the total, for logging.
+     */
+    public String formatTimeline() {
+        if (timeline == null) {
+            return "Startup did not run";
+        }
+        StringBuilder builder = new StringBuilder();
+        for (StepTiming timing : timeline) {
+            builder.append(String.format(Locale.US, "%-12s %6d ms -> %6d ms  (%d ms)%s%n",
+                    timing.getName(), millis(timing.getStartNanos()),
+                    millis(timing.getEndNanos()), millis(timing.getDurationNanos()),
+                    timing.getFailure() != null ? " FAILED" : ""));
+        }
+        builder.append(String.format(Locale.US, "%-12s %d ms", "total", millis(totalNanos)));
+        return builder.toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000L;
+    }
+}
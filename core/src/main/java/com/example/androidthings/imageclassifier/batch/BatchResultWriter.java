@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.batch;
+
+import com.example.androidthings.imageclassifier.classifier.Recognition;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Streams batch classification results to a file as they are produced, one line per result, so
+ * nothing but the writer buffer is held in memory.
+ */
+public abstract class BatchResultWriter implements Closeable {
+
+    protected final Writer out;
+
+    protected BatchResultWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * @return a JSON lines writer for {@code .json} and {@code .jsonl} files, a CSV writer
+     * otherwise.
+     */
+    public static BatchResultWriter create(File output) throws IOException {
+        Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+        String name = output.getName().toLowerCase(Locale.US);
+        if (name.endsWith(".json") || name.endsWith(".jsonl")) {
+            return new JsonLines(out);
+        }
+        return new Csv(out);
+    }
+
+    public abstract void write(String path, Collection<Recognition> results) throws IOException;
+
+    public abstract void writeFailure(String path, String error) throws IOException;
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * One line per recognition: {@code path,rank,label,confidence,error}.
+     */
+    static class Csv extends BatchResultWriter {
+
+        Csv(Writer out) throws IOException {
+            super(out);
+            out.write("path,rank,label,confidence,error\n");
+        }
+
+        @Override
+        public void write(String path, Collection<Recognition> results) throws IOException {
+            int rank = 1;
+            for (Recognition recognition : results) {
+                out.write(quote(path));
+                out.write(',');
+                out.write(Integer.toString(rank++));
+                out.write(',');
+                out.write(quote(recognition.getTitle()));
+                out.write(',');
+                out.write(String.format(Locale.US, "%.4f", recognition.getConfidence()));
+                out.write(",\n");
+            }
+        }
+
+        @Override
+        public void writeFailure(String path, String error) throws IOException {
+            out.write(quote(path));
+            out.write(",,,,");
+            out.write(quote(error));
+            out.write('\n');
+        }
+
+        private static String quote(String value) {
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+                    && value.indexOf('\r') < 0) {
+                return value;
+            }
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+    }
+
+    /**
+     * One JSON object per image:
+     * {@code {"path":"...","results":[{"label":"...","confidence":0.9}]}}.
+     */
+    static class JsonLines extends BatchResultWriter {
+
+        JsonLines(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(String path, Collection<Recognition> results) throws IOException {
+            out.write("{\"path\":");
+            writeString(path);
+            out.write(",\"results\":[");
+            boolean first = true;
+            for (Recognition recognition : results) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                out.write("{\"label\":");
+                writeString(recognition.getTitle());
+                out.write(",\"confidence\":");
+                out.write(String.format(Locale.US, "%.4f", recognition.getConfidence()));
+                out.write('}');
+            }
+            out.write("]}\n");
+        }
+
+        @Override
+        public void writeFailure(String path, String error) throws IOException {
+            out.write("{\"path\":");
+            writeString(path);
+            out.write(",\"error\":");
+            writeString(error);
+            out.write("}\n");
+        }
+
+        private void writeString(String value) throws IOException {
+            out.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.write('\\');
+                    out.write(c);
+                } else if (c < 0x20) {
+                    out.write(String.format(Locale.US, "\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+            }
+            out.write('"');
+        }
+    }
+}
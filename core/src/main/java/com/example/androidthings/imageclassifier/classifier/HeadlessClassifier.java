@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import com.example.androidthings.imageclassifier.CenterCrop;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * The classification hot path without Android: center crop and resize, tensor fill, inference
+ * and top-K. Images are ARGB packed {@code int[]}, so it runs on any JVM.
+ *
+ * <p>Not thread safe, as all the buffers are reused across calls.
+ */
+public class HeadlessClassifier {
+
+    private final InferenceEngine engine;
+    private final List<String> labels;
+    private final ModelDescriptor descriptor;
+    private final int inputImageWidth;
+    private final int inputImageHeight;
+
+    private final int[] croppedPixels;
+    private final ByteBuffer imgData;
+    private final Object[] confidencePerLabel;
+    private final TensorFiller tensorFiller;
+    private TopKSelector topKSelector;
+
+    /** Sample tables of the last source size, recomputed when it changes. */
+    private int sampledWidth;
+    private int sampledHeight;
+    private int[] sampleColumns;
+    private int[] sampleRows;
+
+    /**
+     * Classifier for a quantized model with uint8 input and output.
+     */
+    public HeadlessClassifier(InferenceEngine engine, List<String> labels,
+                              int inputImageWidth, int inputImageHeight, int maxResults) {
+        this(engine, labels, ModelDescriptor.quantized(null, null, inputImageWidth,
+                inputImageHeight), maxResults);
+    }
+
+    public HeadlessClassifier(InferenceEngine engine, List<String> labels,
+                              ModelDescriptor descriptor, int maxResults) {
+        this.engine = engine;
+        this.labels = labels;
+        this.descriptor = descriptor;
+        this.inputImageWidth = descriptor.getInputWidth();
+        this.inputImageHeight = descriptor.getInputHeight();
+        this.croppedPixels = new int[inputImageWidth * inputImageHeight];
+        this.tensorFiller = descriptor.createTensorFiller();
+        this.imgData = ByteBuffer.allocateDirect(descriptor.getInputSizeInBytes());
+        this.imgData.order(ByteOrder.nativeOrder());
+        this.confidencePerLabel = descriptor.createOutput(1, labels.size());
+        this.topKSelector = new TopKSelector(maxResults, 0f);
+    }
+
+    /**
+     * Classify the center square of an image of any size.
+     *
+     * @param pixels ARGB pixels of a {@code width} x {@code height} image, row-major.
+     */
+    public List<Recognition> classify(int[] pixels, int width, int height) {
+        if (width != sampledWidth || height != sampledHeight) {
+            final int minDim = CenterCrop.squareSize(width, height);
+            sampleColumns = CenterCrop.centerCropSamples(width, minDim, inputImageWidth);
+            sampleRows = CenterCrop.centerCropSamples(height, minDim, inputImageHeight);
+            sampledWidth = width;
+            sampledHeight = height;
+        }
+        CenterCrop.cropAndResize(pixels, width, sampleColumns, sampleRows, croppedPixels);
+        return classifyInputSize(croppedPixels);
+    }
+
+    /**
+     * Classify an image already at the model input size.
+     */
+    public List<Recognition> classifyInputSize(int[] pixels) {
+        imgData.rewind();
+        tensorFiller.fill(pixels, imgData);
+        imgData.rewind();
+        engine.run(imgData, confidencePerLabel);
+        if (confidencePerLabel[0] instanceof byte[]) {
+            return topKSelector.select((byte[]) confidencePerLabel[0], labels,
+                    descriptor.getOutputScale(), descriptor.getOutputZeroPoint());
+        }
+        return topKSelector.select((float[]) confidencePerLabel[0], labels);
+    }
+
+    /**
+     * Change how many results are returned, and the confidence they need to be returned at all.
+     */
+    public void setResultsFilter(int maxResults, float minConfidence) {
+        topKSelector = new TopKSelector(maxResults, minConfidence);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Hands items completed out of order to a receiver in the order they were numbered. An item
+ * completing ahead of an earlier one is held until all earlier ones were delivered.
+ *
+ * <p>Safe to use from several threads. The receiver is called outside the lock, by one thread
+ * at a time, so it sees items in order and may take its time. If it throws, the later items are
+ * still delivered, and the exception is thrown to the completing thread afterwards. Every number taken from
+ * {@link #nextSequence()} must be completed, with a null item if its work failed, or the items
+ * after it are held forever.
+ */
+public class InOrderDelivery<T> {
+
+    public interface Receiver<T> {
+        void deliver(long sequence, T item);
+    }
+
+    private final Receiver<T> receiver;
+
+    /** Items that completed ahead of an earlier one, keyed by sequence number. */
+    private final TreeMap<Long, T> pending = new TreeMap<>();
+    private long nextSequence;
+    private long nextSequenceToDeliver;
+    /** Whether a thread is calling the receiver, which then delivers every item that is ready. */
+    private boolean delivering;
+
+    public InOrderDelivery(Receiver<T> receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * @return the number of the next item, in submission order.
+     */
+    public synchronized long nextSequence() {
+        return nextSequence++;
+    }
+
+    /**
+     * Delivers {@code item}, and the items after it that were held, if all earlier ones were
+     * delivered. Otherwise holds it, and returns right away.
+     */
+    public void complete(long sequence, T item) {
+        synchronized (this) {
+            if (sequence < nextSequenceToDeliver || sequence >= nextSequence
+                    || pending.containsKey(sequence)) {
+                throw new IllegalArgumentException("Not a pending sequence number: " + sequence);
+            }
+            // TreeMap allows null values, so failed items keep their place
+            pending.put(sequence, item);
+            if (delivering) {
+                // The delivering thread picks this item up once the earlier ones are out
+                return;
+            }
+            delivering = true;
+        }
+
+        List<Long> readySequences = new ArrayList<>();
+        List<T> readyItems = new ArrayList<>();
+        Throwable failure = null;
+        while (true) {
+            synchronized (this) {
+                while (!pending.isEmpty() && pending.firstKey() == nextSequenceToDeliver) {
+                    readySequences.add(nextSequenceToDeliver);
+                    readyItems.add(pending.pollFirstEntry().getValue());
+                    nextSequenceToDeliver++;
+                }
+                if (readyItems.isEmpty()) {
+                    delivering = false;
+                    break;
+                }
+            }
+            for (int i = 0; i < readyItems.size(); i++) {
+                try {
+                    receiver.deliver(readySequences.get(i), readyItems.get(i));
+                } catch (RuntimeException | Error e) {
+                    // The items after a failed delivery still go out, the first failure is
+                    // thrown once they did
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            readySequences.clear();
+            readyItems.clear();
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+}
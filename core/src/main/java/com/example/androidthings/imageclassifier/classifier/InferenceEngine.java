@@ -0,0 +1,32 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Runs a model on an input tensor. Implemented by the TensorFlow Lite interpreter on
+ * the device, and by whatever runtime is available when running headless.
+ */
+public interface InferenceEngine {
+
+    /**
+     * @param input  the input tensor, read from its start.
+     * @param output receives one row of confidences per image of the input, a {@code byte[][]}
+     *               or {@code float[][]} as created by {@link ModelDescriptor#createOutput}.
+     */
+    void run(ByteBuffer input, Object[] output);
+}
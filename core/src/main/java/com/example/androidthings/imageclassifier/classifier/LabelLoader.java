@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the labels of a model, one label per line.
+ */
+public class LabelLoader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private LabelLoader() {
+    }
+
+    /**
+     * Reads all the labels of {@code is}. The stream is not closed.
+     */
+    public static List<String> readLabels(InputStream is) throws IOException {
+        ArrayList<String> result = new ArrayList<>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, UTF_8));
+        String line;
+        while ((line = br.readLine()) != null) {
+            result.add(line);
+        }
+        return result;
+    }
+
+    public static List<String> readLabels(File labelsFile) throws IOException {
+        try (InputStream is = new FileInputStream(labelsFile)) {
+            return readLabels(is);
+        }
+    }
+}
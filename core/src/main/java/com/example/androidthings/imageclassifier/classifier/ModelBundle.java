@@ -0,0 +1,285 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.zip.CRC32;
+
+/**
+ * A model, its labels and its tensor metadata in a single file, opened with one memory mapping.
+ * The labels are decoded when they are first looked up.
+ *
+ * <p>The file is little-endian:
+ * <pre>
+ *  0  magic "TFLB"                      36  output zero point
+ *  4  format version                    40  label count
+ *  8  input width                       44  label table offset
+ * 12  input height                      48  label table length
+ * 16  input type, output type (bytes)   52  model offset, 16-byte aligned
+ * 20  input mean                        56  model length
+ * 24  input std
+ * 28  output scale                      60  CRC32 of the header before it and of the body
+ * 32  reserved
+ * </pre>
+ * The label table holds {@code labelCount + 1} offsets into the UTF-8 label bytes that follow
+ * them, label {@code i} spanning from offset {@code i} to offset {@code i + 1}.
+ */
+public class ModelBundle {
+
+    static final int MAGIC = 0x424c4654;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    private static final int CRC_OFFSET = 60;
+    private static final int MODEL_ALIGNMENT = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer bundle;
+    private final ModelDescriptor descriptor;
+    private final MappedByteBuffer model;
+    private final ByteBuffer labelTable;
+    private final int labelCount;
+    private final String[] decodedLabels;
+    private final int storedCrc;
+
+    private ModelBundle(String name, MappedByteBuffer mapping) throws IOException {
+        bundle = mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int size = bundle.capacity();
+        if (size < HEADER_SIZE || bundle.getInt(0) != MAGIC) {
+            throw new IOException(name + " is not a model bundle");
+        }
+        if (bundle.getInt(4) != VERSION) {
+            throw new IOException(name + " has unsupported bundle version " + bundle.getInt(4));
+        }
+        descriptor = new ModelDescriptor(name, name, bundle.getInt(8), bundle.getInt(12),
+                dataType(name, bundle.get(16)), dataType(name, bundle.get(17)),
+                bundle.getFloat(20), bundle.getFloat(24), bundle.getFloat(28),
+                bundle.getInt(36));
+        labelCount = bundle.getInt(40);
+        final int labelTableOffset = bundle.getInt(44);
+        final int labelTableLength = bundle.getInt(48);
+        final int modelOffset = bundle.getInt(52);
+        final int modelLength = bundle.getInt(56);
+        storedCrc = bundle.getInt(CRC_OFFSET);
+        if (labelCount < 0 || !inBounds(labelTableOffset, labelTableLength, size)
+                || 4L * (labelCount + 1) > labelTableLength
+                || !inBounds(modelOffset, modelLength, size)) {
+            throw new IOException(name + " is a corrupt model bundle");
+        }
+
+        labelTable = slice(labelTableOffset, labelTableLength).order(ByteOrder.LITTLE_ENDIAN);
+        decodedLabels = new String[labelCount];
+        // Slices of a mapping are mapped buffers too, as the interpreter requires
+        model = (MappedByteBuffer) slice(modelOffset, modelLength);
+    }
+
+    /**
+     * Maps a bundle file. Only the header is read.
+     */
+    public static ModelBundle open(File bundleFile) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(bundleFile)) {
+            FileChannel fileChannel = inputStream.getChannel();
+            return open(bundleFile.getName(), fileChannel, 0, fileChannel.size());
+        }
+    }
+
+    /**
+     * Maps a bundle stored at {@code startOffset} of a larger file, as packaged assets are.
+     */
+    public static ModelBundle open(String name, FileChannel fileChannel, long startOffset,
+                                   long declaredLength) throws IOException {
+        return new ModelBundle(name,
+                ModelLoader.map(fileChannel, startOffset, declaredLength));
+    }
+
+    /**
+     * Checks the bundle against its checksum. This reads the whole file, which also brings the
+     * model into the page cache before the first inference.
+     *
+     * @throws IOException if the bundle was corrupted or truncated.
+     */
+    public void verify() throws IOException {
+        if (computeCrc(bundle) != storedCrc) {
+            throw new IOException(descriptor.getModelFile() + " does not match its checksum");
+        }
+    }
+
+    /**
+     * @return the tensor metadata of the model. Its model and labels file are the bundle name.
+     */
+    public ModelDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * @return the model, for the interpreter. It shares the mapping of the bundle.
+     */
+    public MappedByteBuffer getModel() {
+        return model;
+    }
+
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    /**
+     * Decodes label {@code index}, or returns it if it was decoded before.
+     *
+     * @throws IllegalStateException if the offsets of the label are outside the label bytes.
+     *                               Only the header is checked when the bundle is opened.
+     */
+    public String getLabel(int index) {
+        String label = decodedLabels[index];
+        if (label == null) {
+            final int start = labelTable.getInt(4 * index);
+            final int end = labelTable.getInt(4 * (index + 1));
+            final int labelBytesOffset = 4 * (labelCount + 1);
+            if (start < 0 || start > end || end > labelTable.capacity() - labelBytesOffset) {
+                throw new IllegalStateException(descriptor.getModelFile()
+                        + " is a corrupt model bundle, label " + index + " spans " + start
+                        + " to " + end);
+            }
+            ByteBuffer bytes = labelTable.duplicate();
+            bytes.position(labelBytesOffset + start);
+            byte[] utf8 = new byte[end - start];
+            bytes.get(utf8);
+            label = new String(utf8, UTF_8);
+            // Racing threads decode the same immutable string, either copy can be kept
+            decodedLabels[index] = label;
+        }
+        return label;
+    }
+
+    /**
+     * @return a view of the labels that decodes them on lookup, for {@link TopKSelector}.
+     */
+    public List<String> getLabels() {
+        return new LabelList();
+    }
+
+    private class LabelList extends AbstractList<String> implements RandomAccess {
+        @Override
+        public String get(int index) {
+            return getLabel(index);
+        }
+
+        @Override
+        public int size() {
+            return labelCount;
+        }
+    }
+
+    /**
+     * Writes a bundle of {@code model} and {@code labels}, with the input and output metadata of
+     * {@code descriptor}. Its model and labels file names are not stored.
+     */
+    public static void write(OutputStream out, byte[] model, List<String> labels,
+                             ModelDescriptor descriptor) throws IOException {
+        byte[][] encodedLabels = new byte[labels.size()][];
+        int labelBytes = 0;
+        for (int i = 0; i < encodedLabels.length; i++) {
+            encodedLabels[i] = labels.get(i).getBytes(UTF_8);
+            labelBytes += encodedLabels[i].length;
+        }
+        final int labelTableOffset = HEADER_SIZE;
+        final int labelTableLength = 4 * (labels.size() + 1) + labelBytes;
+        final int modelOffset = align(labelTableOffset + labelTableLength, MODEL_ALIGNMENT);
+
+        ByteBuffer bundle = ByteBuffer.allocate(modelOffset + model.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        bundle.putInt(MAGIC).putInt(VERSION)
+                .putInt(descriptor.getInputWidth()).putInt(descriptor.getInputHeight())
+                .put((byte) descriptor.getInputType().ordinal())
+                .put((byte) descriptor.getOutputType().ordinal())
+                .putShort((short) 0)
+                .putFloat(descriptor.getInputMean()).putFloat(descriptor.getInputStd())
+                .putFloat(descriptor.getOutputScale())
+                .putInt(0)
+                .putInt(descriptor.getOutputZeroPoint())
+                .putInt(labels.size()).putInt(labelTableOffset).putInt(labelTableLength)
+                .putInt(modelOffset).putInt(model.length);
+
+        bundle.position(labelTableOffset);
+        int labelOffset = 0;
+        bundle.putInt(labelOffset);
+        for (byte[] label : encodedLabels) {
+            labelOffset += label.length;
+            bundle.putInt(labelOffset);
+        }
+        for (byte[] label : encodedLabels) {
+            bundle.put(label);
+        }
+        bundle.position(modelOffset);
+        bundle.put(model);
+
+        bundle.putInt(CRC_OFFSET, computeCrc(bundle));
+        out.write(bundle.array());
+    }
+
+    private static int computeCrc(ByteBuffer bundle) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        ByteBuffer bytes = bundle.duplicate();
+        bytes.position(0).limit(CRC_OFFSET);
+        update(crc, bytes, chunk);
+        bytes.limit(bytes.capacity()).position(HEADER_SIZE);
+        update(crc, bytes, chunk);
+        return (int) crc.getValue();
+    }
+
+    private static void update(CRC32 crc, ByteBuffer bytes, byte[] chunk) {
+        while (bytes.hasRemaining()) {
+            int length = Math.min(chunk.length, bytes.remaining());
+            bytes.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer view = bundle.duplicate();
+        view.limit(offset + length).position(offset);
+        return view.slice();
+    }
+
+    private static boolean inBounds(int offset, int length, int size) {
+        return offset >= HEADER_SIZE && length >= 0 && (long) offset + length <= size;
+    }
+
+    private static int align(int offset, int alignment) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    private static ModelDescriptor.DataType dataType(String name, byte ordinal)
+            throws IOException {
+        ModelDescriptor.DataType[] types = ModelDescriptor.DataType.values();
+        if (ordinal < 0 || ordinal >= types.length) {
+            throw new IOException(name + " has unknown tensor type " + ordinal);
+        }
+        return types[ordinal];
+    }
+}
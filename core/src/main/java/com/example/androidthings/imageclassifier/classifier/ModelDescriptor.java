@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+/**
+ * Describes the input and output tensors of an image classification model: where to find it, the
+ * input image size, the tensor data types, how pixels are normalized for a float input, and how
+ * a quantized output maps back to probabilities.
+ */
+public class ModelDescriptor {
+
+    public enum DataType {
+        UINT8,
+        FLOAT32
+    }
+
+    private static final int DIM_PIXEL_SIZE = 3;
+
+    /** The quantized MobileNet shipped in the app assets. */
+    public static final ModelDescriptor MOBILENET_QUANT_V1_224 =
+            quantized("mobilenet_quant_v1_224.tflite", "labels.txt", 224, 224);
+
+    private final String modelFile;
+    private final String labelsFile;
+    private final int inputWidth;
+    private final int inputHeight;
+    private final DataType inputType;
+    private final DataType outputType;
+    private final float inputMean;
+    private final float inputStd;
+    private final float outputScale;
+    private final int outputZeroPoint;
+
+    /**
+     * @param inputMean       subtracted from each channel of a float input.
+     * @param inputStd        divides each channel of a float input, after the mean.
+     * @param outputScale     a quantized output value {@code q} stands for the probability
+     *                        {@code outputScale * (q - outputZeroPoint)}.
+     * @param outputZeroPoint see {@code outputScale}.
+     */
+    public ModelDescriptor(String modelFile, String labelsFile, int inputWidth, int inputHeight,
+                           DataType inputType, DataType outputType, float inputMean,
+                           float inputStd, float outputScale, int outputZeroPoint) {
+        this.modelFile = modelFile;
+        this.labelsFile = labelsFile;
+        this.inputWidth = inputWidth;
+        this.inputHeight = inputHeight;
+        this.inputType = inputType;
+        this.outputType = outputType;
+        this.inputMean = inputMean;
+        this.inputStd = inputStd;
+        this.outputScale = outputScale;
+        this.outputZeroPoint = outputZeroPoint;
+    }
+
+    /**
+     * A model with uint8 RGB input and uint8 probabilities scaled to 0-255.
+     */
+    public static ModelDescriptor quantized(String modelFile, String labelsFile,
+                                            int inputWidth, int inputHeight) {
+        return new ModelDescriptor(modelFile, labelsFile, inputWidth, inputHeight,
+                DataType.UINT8, DataType.UINT8, 0f, 1f, 1 / 255f, 0);
+    }
+
+    /**
+     * A model with float RGB input normalized as {@code (value - mean) / std}, and float
+     * probabilities, such as the float MobileNet and Inception variants (mean and std 127.5).
+     */
+    public static ModelDescriptor float32(String modelFile, String labelsFile,
+                                          int inputWidth, int inputHeight,
+                                          float inputMean, float inputStd) {
+        return new ModelDescriptor(modelFile, labelsFile, inputWidth, inputHeight,
+                DataType.FLOAT32, DataType.FLOAT32, inputMean, inputStd, 1f, 0);
+    }
+
+    /**
+     * @return the same model, taking images of another size.
+     */
+    public ModelDescriptor withInputSize(int width, int height) {
+        return new ModelDescriptor(modelFile, labelsFile, width, height, inputType, outputType,
+                inputMean, inputStd, outputScale, outputZeroPoint);
+    }
+
+    /**
+     * @return the same kind of model, read from other files.
+     */
+    public ModelDescriptor withFiles(String modelFile, String labelsFile) {
+        return new ModelDescriptor(modelFile, labelsFile, inputWidth, inputHeight, inputType,
+                outputType, inputMean, inputStd, outputScale, outputZeroPoint);
+    }
+
+    /**
+     * @return whether {@code other} takes input tensors of the same shape and type, so images
+     * preprocessed for one model can be classified by the other.
+     */
+    public boolean hasSameInput(ModelDescriptor other) {
+        return inputWidth == other.inputWidth && inputHeight == other.inputHeight
+                && inputType == other.inputType;
+    }
+
+    /**
+     * @return a filler writing pixels in this model's input format, normalizing them on the way.
+     */
+    public TensorFiller createTensorFiller() {
+        return new TensorFiller(inputWidth, inputHeight,
+                inputType == DataType.UINT8 ? TensorFiller.Format.UINT8
+                        : TensorFiller.Format.FLOAT32,
+                inputMean, inputStd);
+    }
+
+    /**
+     * @return an output array of {@code batchSize} rows for the interpreter to write into:
+     * {@code byte[][]} for a quantized output, {@code float[][]} otherwise.
+     */
+    public Object[] createOutput(int batchSize, int labelCount) {
+        if (outputType == DataType.UINT8) {
+            return new byte[batchSize][labelCount];
+        }
+        return new float[batchSize][labelCount];
+    }
+
+    /**
+     * @return the input tensor shape for {@code batchSize} images.
+     */
+    public int[] getInputShape(int batchSize) {
+        return new int[] {batchSize, inputHeight, inputWidth, DIM_PIXEL_SIZE};
+    }
+
+    public int getInputSizeInBytes() {
+        return inputWidth * inputHeight * DIM_PIXEL_SIZE * (inputType == DataType.UINT8 ? 1 : 4);
+    }
+
+    public String getModelFile() {
+        return modelFile;
+    }
+
+    public String getLabelsFile() {
+        return labelsFile;
+    }
+
+    public int getInputWidth() {
+        return inputWidth;
+    }
+
+    public int getInputHeight() {
+        return inputHeight;
+    }
+
+    public DataType getInputType() {
+        return inputType;
+    }
+
+    public DataType getOutputType() {
+        return outputType;
+    }
+
+    public float getInputMean() {
+        return inputMean;
+    }
+
+    public float getInputStd() {
+        return inputStd;
+    }
+
+    public float getOutputScale() {
+        return outputScale;
+    }
+
+    public int getOutputZeroPoint() {
+        return outputZeroPoint;
+    }
+
+    @Override
+    public String toString() {
+        return modelFile + " (" + inputWidth + "x" + inputHeight + " " + inputType + " -> "
+                + outputType + ")";
+    }
+}
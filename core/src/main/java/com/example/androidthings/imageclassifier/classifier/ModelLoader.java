@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-maps model files, so the interpreter reads the weights straight from the page cache.
+ */
+public class ModelLoader {
+
+    private ModelLoader() {
+    }
+
+    /**
+     * Memory-map a whole model file.
+     */
+    public static MappedByteBuffer mapModel(File modelFile) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(modelFile)) {
+            FileChannel fileChannel = inputStream.getChannel();
+            return map(fileChannel, 0, fileChannel.size());
+        }
+    }
+
+    /**
+     * Memory-map a model stored at {@code startOffset} of a larger file, as packaged assets are.
+     * The mapping stays valid after the channel is closed.
+     */
+    public static MappedByteBuffer map(FileChannel fileChannel, long startOffset,
+                                       long declaredLength) throws IOException {
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    }
+
+    /**
+     * Reads the whole mapped model into the page cache now, so the first inference does not
+     * stall on page faults.
+     */
+    public static MappedByteBuffer prefetch(MappedByteBuffer model) {
+        model.load();
+        return model;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Computes a 64-bit difference hash (dHash) of an image: the luminance is averaged over a 9x8
+ * grid, and each bit tells whether a cell is brighter than its right neighbour. Images that look
+ * alike get hashes a few bits apart, whatever the sensor noise and small exposure changes.
+ *
+ * <p>Not thread safe, as the grid is reused across calls.
+ */
+public class PerceptualHash {
+
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+
+    private final long[] cellSums = new long[GRID_WIDTH * GRID_HEIGHT];
+    private final int[] cellSizes = new int[GRID_WIDTH * GRID_HEIGHT];
+
+    /**
+     * @param pixels ARGB pixels of a {@code width} x {@code height} image, row-major.
+     */
+    public long compute(int[] pixels, int width, int height) {
+        clearGrid();
+        int pixel = 0;
+        for (int y = 0; y < height; y++) {
+            final int rowCell = (y * GRID_HEIGHT / height) * GRID_WIDTH;
+            for (int x = 0; x < width; x++) {
+                final int val = pixels[pixel++];
+                addToCell(rowCell + x * GRID_WIDTH / width,
+                        luminance((val >> 16) & 0xFF, (val >> 8) & 0xFF, val & 0xFF));
+            }
+        }
+        return hashGrid();
+    }
+
+    /**
+     * @param rgb uint8 RGB bytes of a {@code width} x {@code height} image, as written into the
+     *            model input. Read from its start, without changing its position.
+     */
+    public long compute(ByteBuffer rgb, int width, int height) {
+        clearGrid();
+        int offset = 0;
+        for (int y = 0; y < height; y++) {
+            final int rowCell = (y * GRID_HEIGHT / height) * GRID_WIDTH;
+            for (int x = 0; x < width; x++) {
+                addToCell(rowCell + x * GRID_WIDTH / width, luminance(rgb.get(offset) & 0xFF,
+                        rgb.get(offset + 1) & 0xFF, rgb.get(offset + 2) & 0xFF));
+                offset += 3;
+            }
+        }
+        return hashGrid();
+    }
+
+    /**
+     * @return the number of bits that differ between two hashes.
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    private static int luminance(int r, int g, int b) {
+        // BT.601 weights, in 8.8 fixed point
+        return (77 * r + 150 * g + 29 * b) >> 8;
+    }
+
+    private void clearGrid() {
+        Arrays.fill(cellSums, 0);
+        Arrays.fill(cellSizes, 0);
+    }
+
+    private void addToCell(int cell, int luminance) {
+        cellSums[cell] += luminance;
+        cellSizes[cell]++;
+    }
+
+    private long hashGrid() {
+        long hash = 0;
+        for (int y = 0; y < GRID_HEIGHT; y++) {
+            for (int x = 0; x < GRID_WIDTH - 1; x++) {
+                final int cell = y * GRID_WIDTH + x;
+                // Compare averages without dividing: a/na > b/nb <=> a*nb > b*na
+                hash <<= 1;
+                if (cellSums[cell] * cellSizes[cell + 1] > cellSums[cell + 1] * cellSizes[cell]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+/**
+ * Smooths the per-label probabilities of consecutive frames with an exponential moving average,
+ * so the most confident label does not flicker between near-tied classes. The average is
+ * updated in place in O(labels), without allocating.
+ *
+ * <p>Not thread safe.
+ */
+public class ProbabilitySmoother {
+
+    private final float[] probabilities;
+    private final float alpha;
+    private boolean initialized;
+
+    /**
+     * @param labelCount number of labels of the model output.
+     * @param alpha      weight of the newest frame, from 0 (never changes) to 1 (no smoothing).
+     */
+    public ProbabilitySmoother(int labelCount, float alpha) {
+        if (alpha <= 0f || alpha > 1f) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]: " + alpha);
+        }
+        this.probabilities = new float[labelCount];
+        this.alpha = alpha;
+    }
+
+    /**
+     * Blend in a quantized output, where confidence is {@code (value & 0xff) / 255}.
+     */
+    public void update(byte[] confidences) {
+        update(confidences, 1 / 255f, 0);
+    }
+
+    /**
+     * Blend in a quantized output, where confidence is
+     * {@code scale * ((value & 0xff) - zeroPoint)}.
+     */
+    public void update(byte[] confidences, float scale, int zeroPoint) {
+        final int count = Math.min(confidences.length, probabilities.length);
+        if (!initialized) {
+            for (int i = 0; i < count; i++) {
+                probabilities[i] = scale * ((confidences[i] & 0xff) - zeroPoint);
+            }
+            initialized = true;
+            return;
+        }
+        final float weightedScale = alpha * scale;
+        final float keep = 1f - alpha;
+        for (int i = 0; i < count; i++) {
+            probabilities[i] = keep * probabilities[i]
+                    + weightedScale * ((confidences[i] & 0xff) - zeroPoint);
+        }
+    }
+
+    /**
+     * Blend in a float output.
+     */
+    public void update(float[] confidences) {
+        final int count = Math.min(confidences.length, probabilities.length);
+        if (!initialized) {
+            System.arraycopy(confidences, 0, probabilities, 0, count);
+            initialized = true;
+            return;
+        }
+        final float keep = 1f - alpha;
+        for (int i = 0; i < count; i++) {
+            probabilities[i] = keep * probabilities[i] + alpha * confidences[i];
+        }
+    }
+
+    /**
+     * @return the smoothed probabilities, updated in place by the next call to {@code update}.
+     */
+    public float[] getProbabilities() {
+        return probabilities;
+    }
+
+    /**
+     * Forget past frames, for example when the camera moves to another scene.
+     */
+    public void reset() {
+        initialized = false;
+    }
+}
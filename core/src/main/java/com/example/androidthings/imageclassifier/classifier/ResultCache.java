@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers recent classification results by {@link PerceptualHash} of the classified image, so
+ * a scene that did not change is not classified again. A lookup matches any entry whose hash is
+ * within a Hamming distance tolerance. The least recently used entry is evicted when the cache
+ * is full, and entries older than the time to live are never returned.
+ *
+ * <p>Safe to use from several threads. Cached lists are handed to every caller that hits them,
+ * so they are unmodifiable.
+ */
+public class ResultCache {
+
+    private static class CachedResult {
+        final List<Recognition> results;
+        final long createdNanos;
+
+        CachedResult(List<Recognition> results, long createdNanos) {
+            this.results = results;
+            this.createdNanos = createdNanos;
+        }
+    }
+
+    private final int maxHammingDistance;
+    private final long ttlNanos;
+    private final LinkedHashMap<Long, CachedResult> entries;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries         entries kept before the least recently used one is evicted.
+     * @param maxHammingDistance hashes up to this many bits apart are considered the same scene.
+     * @param ttlMillis          how long results are reused after they were computed.
+     */
+    public ResultCache(final int maxEntries, int maxHammingDistance, long ttlMillis) {
+        this.maxHammingDistance = maxHammingDistance;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<Long, CachedResult>(maxEntries * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedResult> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the results cached for the closest hash within the tolerance, or {@code null}.
+     */
+    public List<Recognition> get(long hash) {
+        return get(hash, System.nanoTime());
+    }
+
+    synchronized List<Recognition> get(long hash, long nowNanos) {
+        CachedResult exact = entries.get(hash);
+        if (exact != null && nowNanos - exact.createdNanos <= ttlNanos) {
+            hits++;
+            return exact.results;
+        }
+
+        long closestHash = 0;
+        int closestDistance = maxHammingDistance + 1;
+        Iterator<Map.Entry<Long, CachedResult>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, CachedResult> entry = it.next();
+            if (nowNanos - entry.getValue().createdNanos > ttlNanos) {
+                it.remove();
+                continue;
+            }
+            final int distance = PerceptualHash.distance(hash, entry.getKey());
+            if (distance < closestDistance) {
+                closestDistance = distance;
+                closestHash = entry.getKey();
+            }
+        }
+        if (closestDistance > maxHammingDistance) {
+            misses++;
+            return null;
+        }
+        hits++;
+        // Touch the entry so it counts as recently used
+        return entries.get(closestHash).results;
+    }
+
+    /**
+     * @return the unmodifiable view of {@code results} that was cached, to hand out instead of
+     * {@code results} itself.
+     */
+    public List<Recognition> put(long hash, List<Recognition> results) {
+        return put(hash, results, System.nanoTime());
+    }
+
+    synchronized List<Recognition> put(long hash, List<Recognition> results, long nowNanos) {
+        final List<Recognition> shared = Collections.unmodifiableList(results);
+        entries.put(hash, new CachedResult(shared, nowNanos));
+        return shared;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final long lookups = hits + misses;
+        return "ResultCache{entries=" + entries.size() + ", hits=" + hits + ", misses=" + misses
+                + ", hitRate=" + (lookups == 0 ? 0 : Math.round(hits * 100.0 / lookups)) + "%}";
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Writes ARGB pixels into a model input buffer. Pixels are unpacked row-major into a reusable
+ * staging array, which is then copied into the buffer with a single bulk put. Supports uint8
+ * inputs and float32 inputs normalized as {@code (value - mean) / std}.
+ *
+ * <p>An instance is sized for one image and is not thread safe.
+ */
+public class TensorFiller {
+
+    public enum Format {
+        UINT8(1),
+        FLOAT32(4);
+
+        final int bytesPerChannel;
+
+        Format(int bytesPerChannel) {
+            this.bytesPerChannel = bytesPerChannel;
+        }
+    }
+
+    private static final int DIM_PIXEL_SIZE = 3;
+
+    private final int width;
+    private final int height;
+    private final Format format;
+    private final float mean;
+    private final float inverseStd;
+
+    /** Pixels being unpacked, only set during a fill. */
+    private int[] intValues;
+    private final byte[] byteValues;
+    private final float[] floatValues;
+
+    /** Float view over the last buffer filled, kept to avoid creating one per frame. */
+    private ByteBuffer floatViewSource;
+    private FloatBuffer floatView;
+
+    /** Optional executor unpacking bands of rows in parallel. */
+    private ExecutorService executor;
+    private List<Callable<Void>> rowBands;
+
+    public static TensorFiller uint8(int width, int height) {
+        return new TensorFiller(width, height, Format.UINT8, 0f, 1f);
+    }
+
+    public static TensorFiller float32(int width, int height, float mean, float std) {
+        return new TensorFiller(width, height, Format.FLOAT32, mean, std);
+    }
+
+    public TensorFiller(int width, int height, Format format, float mean, float std) {
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.mean = mean;
+        this.inverseStd = 1f / std;
+        if (format == Format.UINT8) {
+            this.byteValues = new byte[width * height * DIM_PIXEL_SIZE];
+            this.floatValues = null;
+        } else {
+            this.byteValues = null;
+            this.floatValues = new float[width * height * DIM_PIXEL_SIZE];
+        }
+    }
+
+    /**
+     * Unpack rows in {@code bands} parallel bands on {@code executor}. Only worth it for large
+     * inputs, since each fill then waits on the executor. Pass a {@code null} executor to go back
+     * to unpacking on the calling thread.
+     */
+    public void setRowParallelism(ExecutorService executor, int bands) {
+        this.executor = executor;
+        if (executor == null || bands <= 1) {
+            this.executor = null;
+            this.rowBands = null;
+            return;
+        }
+        rowBands = new ArrayList<>(bands);
+        final int rowsPerBand = (height + bands - 1) / bands;
+        for (int start = 0; start < height; start += rowsPerBand) {
+            final int firstRow = start;
+            final int lastRow = Math.min(height, start + rowsPerBand);
+            rowBands.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    unpackRows(firstRow, lastRow);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of bytes written for one image.
+     */
+    public int getImageSizeInBytes() {
+        return width * height * DIM_PIXEL_SIZE * format.bytesPerChannel;
+    }
+
+    /**
+     * Writes {@code pixels}, ARGB packed row-major, at the current position of {@code imgData},
+     * and advances its position past them.
+     */
+    public void fill(int[] pixels, ByteBuffer imgData) {
+        intValues = pixels;
+        try {
+            if (rowBands == null) {
+                unpackRows(0, height);
+            } else {
+                unpackRowsInParallel();
+            }
+        } finally {
+            intValues = null;
+        }
+
+        if (format == Format.UINT8) {
+            imgData.put(byteValues);
+        } else {
+            if (floatViewSource != imgData) {
+                // The view keeps its own position, so it is created over the whole buffer
+                ByteBuffer whole = imgData.duplicate();
+                whole.order(imgData.order());
+                whole.rewind();
+                floatView = whole.asFloatBuffer();
+                floatViewSource = imgData;
+            }
+            final int start = imgData.position();
+            floatView.position(start / 4);
+            floatView.put(floatValues);
+            imgData.position(start + floatValues.length * 4);
+        }
+    }
+
+    private void unpackRowsInParallel() {
+        try {
+            for (Future<Void> band : executor.invokeAll(rowBands)) {
+                band.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while filling the input tensor", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot fill the input tensor", e.getCause());
+        }
+    }
+
+    private void unpackRows(int firstRow, int lastRow) {
+        int pixel = firstRow * width;
+        final int end = lastRow * width;
+        int out = pixel * DIM_PIXEL_SIZE;
+        if (format == Format.UINT8) {
+            final byte[] dst = byteValues;
+            for (; pixel < end; ++pixel) {
+                final int val = intValues[pixel];
+                dst[out++] = (byte) ((val >> 16) & 0xFF);
+                dst[out++] = (byte) ((val >> 8) & 0xFF);
+                dst[out++] = (byte) (val & 0xFF);
+            }
+        } else {
+            final float[] dst = floatValues;
+            for (; pixel < end; ++pixel) {
+                final int val = intValues[pixel];
+                dst[out++] = (((val >> 16) & 0xFF) - mean) * inverseStd;
+                dst[out++] = (((val >> 8) & 0xFF) - mean) * inverseStd;
+                dst[out++] = ((val & 0xFF) - mean) * inverseStd;
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Selects the K most confident labels of a model output in O(labels), working on the primitive
+ * confidences. {@link Recognition} objects are only created for the selected labels.
+ *
+ * <p>Not thread safe, as the scratch arrays are reused across calls.
+ */
+public class TopKSelector {
+
+    private final int maxResults;
+    private final float minConfidence;
+
+    /** Number of labels for each of the 256 possible uint8 confidences. */
+    private final int[] histogram = new int[256];
+
+    /** Selected labels and their confidences, most confident first. */
+    private final int[] topIndices;
+    private final float[] topScores;
+    private int topCount;
+
+    /**
+     * @param maxResults    the number of labels to return, at most. Must be at least 1.
+     * @param minConfidence labels less confident than this are never returned.
+     */
+    public TopKSelector(int maxResults, float minConfidence) {
+        if (maxResults < 1) {
+            throw new IllegalArgumentException("maxResults must be at least 1: " + maxResults);
+        }
+        this.maxResults = maxResults;
+        this.minConfidence = minConfidence;
+        this.topIndices = new int[maxResults];
+        this.topScores = new float[maxResults];
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public float getMinConfidence() {
+        return minConfidence;
+    }
+
+    /**
+     * Find the best classifications of a quantized output, where confidence is
+     * {@code (value & 0xff) / 255}. Uses one histogram pass to find the lowest selected value,
+     * and a second pass to collect the labels above it.
+     */
+    public List<Recognition> select(byte[] confidences, List<String> labels) {
+        return select(confidences, labels, 1 / 255f, 0);
+    }
+
+    /**
+     * Find the best classifications of a quantized output, where confidence is
+     * {@code scale * ((value & 0xff) - zeroPoint)}.
+     */
+    public List<Recognition> select(byte[] confidences, List<String> labels,
+                                    float scale, int zeroPoint) {
+        final int labelCount = Math.min(confidences.length, labels.size());
+        final int minValue =
+                Math.max(0, (int) Math.ceil(minConfidence / scale + zeroPoint - 1e-3f));
+
+        Arrays.fill(histogram, 0);
+        for (int i = 0; i < labelCount; i++) {
+            histogram[confidences[i] & 0xff]++;
+        }
+
+        // Walk down from the top bucket until K labels are covered
+        int threshold = 255;
+        int covered = histogram[255];
+        while (covered < maxResults && threshold > minValue) {
+            threshold--;
+            covered += histogram[threshold];
+        }
+        threshold = Math.max(threshold, minValue);
+
+        // Labels above the threshold always fit, ties at the threshold fill what is left
+        int tiesAllowed = maxResults;
+        for (int value = threshold + 1; value < 256; value++) {
+            tiesAllowed -= histogram[value];
+        }
+        topCount = 0;
+        for (int i = 0; i < labelCount && topCount < maxResults; i++) {
+            final int value = confidences[i] & 0xff;
+            if (value > threshold || (value == threshold && tiesAllowed-- > 0)) {
+                insert(i, scale * (value - zeroPoint));
+            }
+        }
+        return toRecognitions(labels);
+    }
+
+    /**
+     * Find the best classifications of a float output.
+     */
+    public List<Recognition> select(float[] confidences, List<String> labels) {
+        final int labelCount = Math.min(confidences.length, labels.size());
+        topCount = 0;
+        for (int i = 0; i < labelCount; i++) {
+            final float score = confidences[i];
+            if (score < minConfidence) {
+                continue;
+            }
+            if (topCount < maxResults || score > topScores[topCount - 1]) {
+                insert(i, score);
+            }
+        }
+        return toRecognitions(labels);
+    }
+
+    /**
+     * Insert a label in the sorted selection, dropping the least confident one when full.
+     */
+    private void insert(int index, float score) {
+        int position = topCount < maxResults ? topCount++ : maxResults - 1;
+        while (position > 0 && topScores[position - 1] < score) {
+            topScores[position] = topScores[position - 1];
+            topIndices[position] = topIndices[position - 1];
+            position--;
+        }
+        topScores[position] = score;
+        topIndices[position] = index;
+    }
+
+    private List<Recognition> toRecognitions(List<String> labels) {
+        List<Recognition> results = new ArrayList<>(topCount);
+        for (int i = 0; i < topCount; i++) {
+            final int index = topIndices[i];
+            results.add(new Recognition(String.valueOf(index), labels.get(index), topScores[i]));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A minimal HTTP/1.1 server for small local endpoints. Each connection carries one request and
+ * is closed after the response. Requests are handled by a bounded pool of workers; a request
+ * arriving while all workers are busy and the queue is full gets a 503 right away.
+ */
+public class LocalHttpServer implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(LocalHttpServer.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /** Longest request line or header line accepted. */
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADERS = 64;
+    private static final int SOCKET_TIMEOUT_MS = 10000;
+    /**
+     * Time to receive a whole request. Without it, a client sending a byte now and then would
+     * hold a worker forever, as each read completes before the socket timeout.
+     */
+    private static final int REQUEST_TIMEOUT_MS = 30000;
+
+    /**
+     * Request bytes left unread, such as a rejected body, are read and dropped for up to this
+     * long before closing. Closing with unread bytes resets the connection, and the client may
+     * then lose the response.
+     */
+    private static final int LINGER_TIMEOUT_MS = 1000;
+    private static final int MAX_LINGER_BYTES = 1024 * 1024;
+
+    public interface Handler {
+        Response handle(Request request) throws IOException;
+    }
+
+    public static class Request {
+        private final String method;
+        private final String path;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        Request(String method, String path, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the path of the request target, without its query.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the value of header {@code name}, case insensitive, or null.
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    public static class Response {
+        private final int status;
+        private final String contentType;
+        private final byte[] body;
+
+        public Response(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        public static Response text(int status, String text) {
+            return new Response(status, "text/plain; charset=utf-8", text.getBytes(UTF_8));
+        }
+
+        public static Response json(int status, String json) {
+            return new Response(status, "application/json", json.getBytes(UTF_8));
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    private final InetAddress bindAddress;
+    private final int port;
+    private final int maxBodyBytes;
+    private final int requestTimeoutMs;
+    private final ThreadPoolExecutor workers;
+    private final Map<String, Handler> handlers = new HashMap<>();
+
+    private volatile ServerSocket serverSocket;
+    private Thread acceptThread;
+
+    /**
+     * @param bindAddress  interface to listen on, for example the loopback address to only
+     *                     serve clients on the device, or null for all interfaces.
+     * @param port         port to listen on, or 0 for any free port.
+     * @param workerCount  requests handled at the same time.
+     * @param queueSize    requests waiting for a worker before new ones are turned away.
+     * @param maxBodyBytes larger request bodies are answered with a 413.
+     */
+    public LocalHttpServer(InetAddress bindAddress, int port, int workerCount, int queueSize,
+                           int maxBodyBytes) {
+        this(bindAddress, port, workerCount, queueSize, maxBodyBytes, REQUEST_TIMEOUT_MS);
+    }
+
+    LocalHttpServer(InetAddress bindAddress, int port, int workerCount, int queueSize,
+                    int maxBodyBytes, int requestTimeoutMs) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.maxBodyBytes = maxBodyBytes;
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)));
+    }
+
+    /**
+     * Serves requests for {@code path} with {@code handler}. Call before {@link #start()}.
+     */
+    public void addHandler(String path, Handler handler) {
+        handlers.put(path, handler);
+    }
+
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        final ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(bindAddress, port));
+        serverSocket = socket;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(socket);
+            }
+        }, "http-" + socket.getLocalPort());
+        acceptThread.start();
+    }
+
+    /**
+     * @return the port the server listens on, once started.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverSocket == null) {
+            return;
+        }
+        serverSocket.close();
+        serverSocket = null;
+        workers.shutdownNow();
+    }
+
+    private void acceptLoop(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            final Socket client;
+            try {
+                client = socket.accept();
+            } catch (IOException e) {
+                // Closed by close(), or a failed connection
+                continue;
+            }
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                try {
+                    writeResponse(client.getOutputStream(), Response.text(503, "Busy\n"));
+                } catch (IOException ignored) {
+                    // The client went away
+                }
+                closeQuietly(client);
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            DeadlineInputStream deadlineIn = new DeadlineInputStream(client,
+                    System.nanoTime() + requestTimeoutMs * 1000000L);
+            InputStream in = new BufferedInputStream(deadlineIn);
+            OutputStream out = client.getOutputStream();
+            writeResponse(out, handle(in));
+            client.shutdownOutput();
+            deadlineIn.setDeadline(System.nanoTime() + LINGER_TIMEOUT_MS * 1000000L);
+            drain(in);
+        } catch (SocketException e) {
+            // The client went away
+        } catch (IOException e) {
+            // Timed out or malformed, nothing sensible to answer
+        } finally {
+            closeQuietly(client);
+        }
+    }
+
+    private Response handle(InputStream in) throws IOException {
+        final String requestLine = readLine(in);
+        if (requestLine == null) {
+            return Response.text(400, "Bad request\n");
+        }
+        final String[] parts = requestLine.split(" ");
+        if (parts.length != 3) {
+            return Response.text(400, "Bad request\n");
+        }
+        final String method = parts[0];
+        String path = parts[1];
+        final int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon <= 0 || headers.size() >= MAX_HEADERS) {
+                return Response.text(400, "Bad request\n");
+            }
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                    line.substring(colon + 1).trim());
+        }
+        if (line == null) {
+            return Response.text(400, "Bad request\n");
+        }
+
+        byte[] body = new byte[0];
+        final String contentLength = headers.get("content-length");
+        if (contentLength != null) {
+            final long length;
+            try {
+                length = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                return Response.text(400, "Bad Content-Length\n");
+            }
+            if (length < 0) {
+                return Response.text(400, "Bad Content-Length\n");
+            }
+            if (length > maxBodyBytes) {
+                return Response.text(413, "Body larger than " + maxBodyBytes + " bytes\n");
+            }
+            body = readFully(in, (int) length);
+        } else if (headers.containsKey("transfer-encoding")) {
+            return Response.text(411, "Content-Length required\n");
+        }
+
+        Handler handler = handlers.get(path);
+        if (handler == null) {
+            return Response.text(404, "Not found\n");
+        }
+        try {
+            return handler.handle(new Request(method, path, headers, body));
+        } catch (RuntimeException e) {
+            // The details stay in the log, clients on the network should not see them
+            LOG.log(Level.WARNING, "Handler of " + method + " " + path + " failed", e);
+            return Response.text(500, "Internal error\n");
+        }
+    }
+
+    /**
+     * Reads until the client closes its side, {@link #MAX_LINGER_BYTES} were read, or the
+     * deadline of the stream passes.
+     */
+    private static void drain(InputStream in) throws IOException {
+        byte[] discard = new byte[8192];
+        int drained = 0;
+        int count;
+        while (drained < MAX_LINGER_BYTES && (count = in.read(discard)) != -1) {
+            drained += count;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length;
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--;
+                }
+                return new String(bytes, 0, length, ISO_8859_1);
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            line.write(c);
+        }
+        return null;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(body, read, length - read);
+            if (count < 0) {
+                throw new IOException("Body truncated after " + read + " bytes");
+            }
+            read += count;
+        }
+        return body;
+    }
+
+    private static void writeResponse(OutputStream out, Response response) throws IOException {
+        final String head = "HTTP/1.1 " + response.status + " " + reason(response.status) + "\r\n"
+                + "Content-Type: " + response.contentType + "\r\n"
+                + "Content-Length: " + response.body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(head.getBytes(ISO_8859_1));
+        out.write(response.body);
+        out.flush();
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 415: return "Unsupported Media Type";
+            case 503: return "Service Unavailable";
+            default: return status >= 500 ? "Internal Server Error" : "Error";
+        }
+    }
+
+    /**
+     * Fails reads once a deadline passes, and never waits on the socket beyond it.
+     */
+    private static class DeadlineInputStream extends FilterInputStream {
+        private final Socket socket;
+        private long deadlineNanos;
+
+        DeadlineInputStream(Socket socket, long deadlineNanos) throws IOException {
+            super(socket.getInputStream());
+            this.socket = socket;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        void setDeadline(long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkDeadline();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            checkDeadline();
+            return super.read(buffer, offset, length);
+        }
+
+        private void checkDeadline() throws IOException {
+            final long remainingMillis =
+                    TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            if (remainingMillis <= 0) {
+                throw new SocketTimeoutException("Request deadline passed");
+            }
+            socket.setSoTimeout((int) Math.min(SOCKET_TIMEOUT_MS, remainingMillis));
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // close quietly
+        }
+    }
+}
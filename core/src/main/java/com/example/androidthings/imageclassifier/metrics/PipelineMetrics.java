@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency of each stage of classification and frame counters, recordable from any thread
+ * without locks or allocation. Snapshots are exported in the Prometheus text format, or as a
+ * one-line-per-stage summary for logcat.
+ */
+public class PipelineMetrics {
+
+    public enum Stage {
+        /** From the sensor exposure to the image being handed to the app. */
+        CAPTURE("capture"),
+        /** JPEG decoding of the center crop. */
+        DECODE("decode"),
+        /** Scaling the decoded crop, or converting YUV, to the model input size. */
+        CROP_RESIZE("crop_resize"),
+        /** Writing pixels into the model input tensor. */
+        TENSOR_FILL("tensor_fill"),
+        /** Interpreter run. */
+        INFERENCE("inference"),
+        /** Selecting and labelling the best results. */
+        TOP_K("top_k"),
+        /** From the results being published to text to speech starting to speak. */
+        TTS_START("tts_start");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    public enum Counter {
+        FRAMES_IN("frames_in"),
+        FRAMES_DROPPED("frames_dropped"),
+        FRAMES_CLASSIFIED("frames_classified");
+
+        private final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final String PREFIX = "imageclassifier_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    public PipelineMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the metrics of the app, shared by all the stages.
+     */
+    public static PipelineMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, a {@link System#nanoTime()} value.
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    public long get(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    public LatencyHistogram.Snapshot snapshot(Stage stage) {
+        return histograms[stage.ordinal()].snapshot();
+    }
+
+    /**
+     * Writes the counters, and the latencies as summaries in seconds, in the Prometheus text
+     * exposition format.
+     */
+    public void writePrometheus(StringBuilder out) {
+        for (Counter counter : Counter.values()) {
+            final String name = PREFIX + counter.getLabel() + "_total";
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(get(counter)).append('\n');
+        }
+
+        final String name = PREFIX + "stage_latency_seconds";
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = snapshot(stage);
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{stage=\"").append(stage.getLabel())
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(snapshot.getQuantileMicros(quantile))).append('\n');
+            }
+            out.append(name).append("_sum{stage=\"").append(stage.getLabel()).append("\"} ")
+                    .append(seconds(snapshot.getSumMicros())).append('\n');
+            out.append(name).append("_count{stage=\"").append(stage.getLabel()).append("\"} ")
+                    .append(snapshot.getCount()).append('\n');
+        }
+    }
+
+    /**
+     * @return the counters and, for each stage that recorded something, its count and
+     * percentiles in milliseconds.
+     */
+    public String summary() {
+        StringBuilder out = new StringBuilder();
+        for (Counter counter : Counter.values()) {
+            out.append(counter.getLabel()).append('=').append(get(counter)).append(' ');
+        }
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram.Snapshot snapshot = snapshot(stage);
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            out.append(String.format(Locale.US, "%n%-12s n=%-7d p50=%.1f p90=%.1f p99=%.1f ms",
+                    stage.getLabel(), snapshot.getCount(),
+                    snapshot.getQuantileMicros(0.5) / 1000f,
+                    snapshot.getQuantileMicros(0.9) / 1000f,
+                    snapshot.getQuantileMicros(0.99) / 1000f));
+        }
+        return out.toString();
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.US, "%.6f", micros / 1e6);
+    }
+}
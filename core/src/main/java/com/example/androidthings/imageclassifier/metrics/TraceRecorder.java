@@ -0,0 +1,228 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.metrics;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the latest spans of work, each tagged with the frame it belongs to, in a ring buffer
+ * allocated up front. Spans can be exported in the Chrome trace event format, to be opened in
+ * chrome://tracing or Perfetto.
+ *
+ * <p>{@link #record} can be called from any thread. It neither locks nor allocates, so the
+ * recorder can stay on in production. Span names should be constants, as only the reference is
+ * kept. An export never mixes the fields of two spans, unless a thread stalls in the middle of
+ * a record while the others lap the whole buffer.
+ */
+public class TraceRecorder {
+
+    /** Frame id of spans recorded on a thread that is not working on a frame. */
+    public static final long NO_FRAME = -1;
+
+    /** Spans kept by the shared recorder, about half a minute at 30 frames per second. */
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private static final TraceRecorder INSTANCE = new TraceRecorder(DEFAULT_CAPACITY);
+
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicLong nextFrameId = new AtomicLong();
+
+    /**
+     * Sequence number plus one of the span in each slot, 0 while the slot is being written.
+     * An export skips slots whose stamp changes while they are read.
+     *
+     * <p>The fields are atomic arrays so their order with the stamps is guaranteed: they are
+     * written with {@code lazySet}, which cannot move before the clearing of the stamp, and read
+     * with {@code get}, which cannot move after the second read of the stamp. With plain arrays
+     * either reordering is allowed, and an export could keep a span mixing two records.
+     */
+    private final AtomicLongArray stamps;
+    private final AtomicReferenceArray<String> names;
+    private final AtomicLongArray frameIds;
+    private final AtomicLongArray startNanos;
+    private final AtomicLongArray endNanos;
+    private final AtomicLongArray threadIds;
+    private final AtomicReferenceArray<String> threadNames;
+
+    private final ThreadLocal<long[]> currentFrame = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[] {NO_FRAME};
+        }
+    };
+
+    /**
+     * @param capacity spans kept, rounded up to a power of two.
+     */
+    public TraceRecorder(int capacity) {
+        final int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        stamps = new AtomicLongArray(size);
+        names = new AtomicReferenceArray<>(size);
+        frameIds = new AtomicLongArray(size);
+        startNanos = new AtomicLongArray(size);
+        endNanos = new AtomicLongArray(size);
+        threadIds = new AtomicLongArray(size);
+        threadNames = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * @return the recorder of the app, shared by all the stages.
+     */
+    public static TraceRecorder getInstance() {
+        return INSTANCE;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Starts a new frame on the calling thread.
+     *
+     * @return the id of the frame, which later spans of this thread are tagged with.
+     */
+    public long startFrame() {
+        final long frameId = nextFrameId.getAndIncrement();
+        setCurrentFrame(frameId);
+        return frameId;
+    }
+
+    /**
+     * Tags later spans of the calling thread with {@code frameId}, for a frame handed over from
+     * another thread.
+     */
+    public void setCurrentFrame(long frameId) {
+        currentFrame.get()[0] = frameId;
+    }
+
+    /**
+     * @return the frame the calling thread works on, or {@link #NO_FRAME}.
+     */
+    public long getCurrentFrame() {
+        return currentFrame.get()[0];
+    }
+
+    /**
+     * Records a span of the calling thread, tagged with its current frame.
+     *
+     * @param startNanos {@link System#nanoTime()} at the start of the span.
+     * @param endNanos   {@link System#nanoTime()} at its end.
+     */
+    public void record(String name, long startNanos, long endNanos) {
+        record(name, getCurrentFrame(), startNanos, endNanos);
+    }
+
+    /**
+     * Records a span of {@code frameId}, for example one measured across threads.
+     */
+    public void record(String name, long frameId, long startNanos, long endNanos) {
+        final long sequence = nextSequence.getAndIncrement();
+        final int slot = (int) (sequence & mask);
+        final Thread thread = Thread.currentThread();
+        stamps.set(slot, 0);
+        names.lazySet(slot, name);
+        frameIds.lazySet(slot, frameId);
+        this.startNanos.lazySet(slot, startNanos);
+        this.endNanos.lazySet(slot, endNanos);
+        threadIds.lazySet(slot, thread.getId());
+        threadNames.lazySet(slot, thread.getName());
+        stamps.set(slot, sequence + 1);
+    }
+
+    /**
+     * Writes the spans that ended in the last {@code windowNanos} as a Chrome trace. Timestamps
+     * are {@link System#nanoTime()} in microseconds, which is the monotonic clock of systrace on
+     * Android.
+     *
+     * @return the number of spans written.
+     */
+    public int writeChromeTrace(Appendable out, long windowNanos) throws IOException {
+        final long now = System.nanoTime();
+        final long end = nextSequence.get();
+        final long start = Math.max(0, end - getCapacity());
+        Map<Long, String> threads = new HashMap<>();
+
+        out.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        int written = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            final int slot = (int) (sequence & mask);
+            final long stamp = stamps.get(slot);
+            if (stamp != sequence + 1) {
+                // Still being written, or already overwritten by a newer span
+                continue;
+            }
+            final String name = names.get(slot);
+            final long frameId = frameIds.get(slot);
+            final long spanStart = startNanos.get(slot);
+            final long spanEnd = endNanos.get(slot);
+            final long threadId = threadIds.get(slot);
+            final String threadName = threadNames.get(slot);
+            if (stamps.get(slot) != stamp || now - spanEnd > windowNanos) {
+                continue;
+            }
+            if (written > 0) {
+                out.append(',');
+            }
+            out.append("\n{\"name\":");
+            appendString(out, name);
+            out.append(",\"cat\":\"frame\",\"ph\":\"X\",\"pid\":0,\"tid\":")
+                    .append(String.valueOf(threadId))
+                    .append(",\"ts\":").append(micros(spanStart))
+                    .append(",\"dur\":").append(micros(spanEnd - spanStart))
+                    .append(",\"args\":{\"frame\":").append(String.valueOf(frameId))
+                    .append("}}");
+            threads.put(threadId, threadName);
+            written++;
+        }
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            out.append(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":")
+                    .append(String.valueOf(thread.getKey()))
+                    .append(",\"args\":{\"name\":");
+            appendString(out, thread.getValue());
+            out.append("}}");
+        }
+        out.append("\n]}\n");
+        return written;
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1000.0);
+    }
+
+    private static void appendString(Appendable out, String value) throws IOException {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CenterCropTest {
+    private static final int MODEL_SIZE = 224;
+
+    /**
+     * Tests that a frame smaller than twice the model size is not subsampled.
+     */
+    @Test
+    public void testNoSubsampling() {
+        Assert.assertEquals(1, CenterCrop.computeSampleSize(240, MODEL_SIZE));
+        Assert.assertEquals(1, CenterCrop.computeSampleSize(MODEL_SIZE, MODEL_SIZE));
+    }
+
+    /**
+     * Tests that the largest power of two keeping the crop above the model size is chosen.
+     */
+    @Test
+    public void testPowerOfTwoSubsampling() {
+        Assert.assertEquals(2, CenterCrop.computeSampleSize(480, MODEL_SIZE));
+        Assert.assertEquals(4, CenterCrop.computeSampleSize(1080, MODEL_SIZE));
+        Assert.assertEquals(8, CenterCrop.computeSampleSize(1944, MODEL_SIZE));
+    }
+
+    /**
+     * Tests that samples are taken at the pixel centers of the centered square.
+     */
+    @Test
+    public void testCenterCropSamples() {
+        Assert.assertArrayEquals(new int[] {160, 320, 480},
+                CenterCrop.centerCropSamples(640, 480, 3));
+        Assert.assertArrayEquals(new int[] {0, 1, 2, 3},
+                CenterCrop.centerCropSamples(4, 4, 4));
+    }
+
+    /**
+     * Tests that the center square of a wide image is kept when resizing.
+     */
+    @Test
+    public void testCropAndResize() {
+        int[] src = {
+                0, 1, 2, 3,
+                4, 5, 6, 7,
+        };
+        int[] dst = new int[4];
+        CenterCrop.cropAndResize(src, 4, 2, dst, 2, 2);
+        Assert.assertArrayEquals(new int[] {1, 2, 5, 6}, dst);
+    }
+}
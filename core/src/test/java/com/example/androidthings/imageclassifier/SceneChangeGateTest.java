@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class SceneChangeGateTest {
+    private static final int SIZE = 64;
+
+    private static int[] frame(int luma, int noise, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[SIZE * SIZE];
+        for (int i = 0; i < pixels.length; i++) {
+            final int value =
+                    Math.max(0, Math.min(255, luma + random.nextInt(2 * noise + 1) - noise));
+            pixels[i] = 0xFF000000 | value << 16 | value << 8 | value;
+        }
+        return pixels;
+    }
+
+    private static SceneChangeGate createGate() {
+        return new SceneChangeGate(8, 6f, 0.05f, 1000);
+    }
+
+    /**
+     * Tests that sensor noise is skipped and a scene change passes.
+     */
+    @Test
+    public void testNoiseSkippedChangePasses() {
+        SceneChangeGate gate = createGate();
+        gate.sampleArgb(frame(100, 0, 0), SIZE, SIZE);
+        Assert.assertTrue(gate.shouldClassify(0));
+
+        for (int i = 1; i <= 10; i++) {
+            gate.sampleArgb(frame(100, 10, i), SIZE, SIZE);
+            Assert.assertFalse(gate.shouldClassify(i));
+        }
+
+        gate.sampleArgb(frame(160, 10, 11), SIZE, SIZE);
+        Assert.assertTrue(gate.shouldClassify(11));
+        Assert.assertEquals(2, gate.getPassCount());
+        Assert.assertEquals(10, gate.getSkipCount());
+    }
+
+    /**
+     * Tests that an unchanged scene still passes once the staleness timer fires.
+     */
+    @Test
+    public void testMaxStaleness() {
+        SceneChangeGate gate = createGate();
+        gate.sampleArgb(frame(100, 0, 0), SIZE, SIZE);
+        Assert.assertTrue(gate.shouldClassify(0));
+        Assert.assertFalse(gate.shouldClassify(999));
+        Assert.assertTrue(gate.shouldClassify(1000));
+        Assert.assertEquals(1, gate.getStalePassCount());
+    }
+
+    /**
+     * Tests that sampling a luma plane region matches sampling the same ARGB image.
+     */
+    @Test
+    public void testLumaMatchesArgb() {
+        int[] pixels = frame(100, 50, 1);
+        byte[] plane = new byte[(SIZE + 10) * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                plane[y * (SIZE + 10) + x + 10] = (byte) (pixels[y * SIZE + x] & 0xFF);
+            }
+        }
+
+        SceneChangeGate argbGate = createGate();
+        argbGate.sampleArgb(pixels, SIZE, SIZE);
+        argbGate.shouldClassify(0);
+        SceneChangeGate lumaGate = createGate();
+        lumaGate.sampleLuma(ByteBuffer.wrap(plane), SIZE + 10, 1, 10, 0, SIZE, SIZE);
+        lumaGate.shouldClassify(0);
+
+        // Both backgrounds now hold their thumbnail: the other image must not look different
+        argbGate.sampleLuma(ByteBuffer.wrap(plane), SIZE + 10, 1, 10, 0, SIZE, SIZE);
+        Assert.assertFalse(argbGate.shouldClassify(1));
+        Assert.assertEquals(0f, argbGate.getLastChange(), 0f);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class StartupOrchestratorTest {
+
+    @Test
+    public void testStepsRunConcurrently() throws InterruptedException {
+        // Each step waits for the other one to start, which only completes if they overlap
+        final CountDownLatch started = new CountDownLatch(2);
+        StartupOrchestrator.Step step = new StartupOrchestrator.Step() {
+            @Override
+            public void run() throws Exception {
+                started.countDown();
+                if (!started.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Steps ran one after the other");
+                }
+            }
+        };
+        StartupOrchestrator orchestrator = new StartupOrchestrator();
+        orchestrator.addStep("camera", step);
+        orchestrator.addStep("classifier", step);
+
+        List<StartupOrchestrator.StepTiming> timeline = orchestrator.run();
+
+        assertEquals(2, timeline.size());
+        assertEquals("camera", timeline.get(0).getName());
+        assertEquals("classifier", timeline.get(1).getName());
+        for (StartupOrchestrator.StepTiming timing : timeline) {
+            assertNull(timing.getFailure());
+            assertTrue(timing.getEndNanos() <= orchestrator.getTotalNanos());
+        }
+        assertTrue(orchestrator.formatTimeline().contains("classifier"));
+    }
+
+    @Test
+    public void testFailureIsRethrownAfterAllStepsFinish() throws InterruptedException {
+        final IOException failure = new IOException("no model");
+        final AtomicBoolean slowStepFinished = new AtomicBoolean();
+        StartupOrchestrator orchestrator = new StartupOrchestrator();
+        orchestrator.addStep("classifier", new StartupOrchestrator.Step() {
+            @Override
+            public void run() throws Exception {
+                throw failure;
+            }
+        });
+        orchestrator.addStep("tts", new StartupOrchestrator.Step() {
+            @Override
+            public void run() throws Exception {
+                Thread.sleep(50);
+                slowStepFinished.set(true);
+            }
+        });
+
+        try {
+            orchestrator.run();
+            fail("Expected the classifier step to fail");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertTrue(slowStepFinished.get());
+        assertTrue(orchestrator.formatTimeline().contains("FAILED"));
+    }
+
+    @Test
+    public void testErrorIsKeptAndRethrown() throws InterruptedException {
+        final OutOfMemoryError error = new OutOfMemoryError("model too large");
+        StartupOrchestrator orchestrator = new StartupOrchestrator();
+        orchestrator.addStep("camera", new StartupOrchestrator.Step() {
+            @Override
+            public void run() throws Exception {
+            }
+        });
+        orchestrator.addStep("classifier", new StartupOrchestrator.Step() {
+            @Override
+            public void run() throws Exception {
+                throw error;
+            }
+        });
+
+        try {
+            orchestrator.run();
+            fail("Expected the classifier step to fail");
+        } catch (OutOfMemoryError e) {
+            assertSame(error, e);
+        }
+        // Only the step that hit the error is marked
+        final String[] lines = orchestrator.formatTimeline().split("\n");
+        assertFalse(lines[0].contains("FAILED"));
+        assertTrue(lines[1].startsWith("classifier") && lines[1].contains("FAILED"));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.batch;
+
+import com.example.androidthings.imageclassifier.classifier.Recognition;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class BatchResultWriterTest {
+
+    /**
+     * Tests that a CSV row is written per result, ranked from 1.
+     */
+    @Test
+    public void testCsvResults() throws IOException {
+        StringWriter out = new StringWriter();
+        BatchResultWriter writer = new BatchResultWriter.Csv(out);
+        writer.write("/sdcard/a.jpg", Arrays.asList(
+                new Recognition("1", "cat", 0.75f), new Recognition("2", "dog", 0.125f)));
+        writer.flush();
+
+        Assert.assertEquals("path,rank,label,confidence,error\n"
+                + "/sdcard/a.jpg,1,cat,0.7500,\n"
+                + "/sdcard/a.jpg,2,dog,0.1250,\n", out.toString());
+    }
+
+    /**
+     * Tests that fields with separators, quotes or line breaks are quoted, with quotes doubled.
+     */
+    @Test
+    public void testCsvQuoting() throws IOException {
+        StringWriter out = new StringWriter();
+        BatchResultWriter writer = new BatchResultWriter.Csv(out);
+        writer.write("/sdcard/a,b.jpg", Collections.singletonList(
+                new Recognition("1", "the \"best\" cat", 1f)));
+        writer.writeFailure("/sdcard/c.jpg", "line one\r\nline two");
+        writer.flush();
+
+        Assert.assertEquals("path,rank,label,confidence,error\n"
+                + "\"/sdcard/a,b.jpg\",1,\"the \"\"best\"\" cat\",1.0000,\n"
+                + "/sdcard/c.jpg,,,,\"line one\r\nline two\"\n", out.toString());
+    }
+
+    /**
+     * Tests that each image is one JSON object, with results or an error.
+     */
+    @Test
+    public void testJsonLines() throws IOException {
+        StringWriter out = new StringWriter();
+        BatchResultWriter writer = new BatchResultWriter.JsonLines(out);
+        writer.write("/sdcard/a.jpg", Arrays.asList(
+                new Recognition("1", "cat", 0.75f), new Recognition("2", "dog", 0.125f)));
+        writer.write("/sdcard/b.jpg", Collections.<Recognition>emptyList());
+        writer.writeFailure("/sdcard/c.jpg", "Cannot decode image");
+        writer.flush();
+
+        Assert.assertEquals("{\"path\":\"/sdcard/a.jpg\",\"results\":["
+                + "{\"label\":\"cat\",\"confidence\":0.7500},"
+                + "{\"label\":\"dog\",\"confidence\":0.1250}]}\n"
+                + "{\"path\":\"/sdcard/b.jpg\",\"results\":[]}\n"
+                + "{\"path\":\"/sdcard/c.jpg\",\"error\":\"Cannot decode image\"}\n",
+                out.toString());
+    }
+
+    /**
+     * Tests that quotes, backslashes and control characters are escaped in JSON strings.
+     */
+    @Test
+    public void testJsonEscaping() throws IOException {
+        StringWriter out = new StringWriter();
+        BatchResultWriter writer = new BatchResultWriter.JsonLines(out);
+        writer.writeFailure("C:\\frames\\\"a\".jpg", "bad\nheader\t\u0001");
+        writer.flush();
+
+        Assert.assertEquals("{\"path\":\"C:\\\\frames\\\\\\\"a\\\".jpg\","
+                + "\"error\":\"bad\\u000aheader\\u0009\\u0001\"}\n", out.toString());
+    }
+}
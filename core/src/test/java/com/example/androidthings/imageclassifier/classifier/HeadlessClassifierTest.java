@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public class HeadlessClassifierTest {
+
+    /**
+     * Scores each label with one channel of the first pixel, so results follow the input.
+     */
+    private static class FirstPixelEngine implements InferenceEngine {
+        @Override
+        public void run(ByteBuffer input, Object[] output) {
+            if (output[0] instanceof byte[]) {
+                byte[] row = (byte[]) output[0];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = input.get(i);
+                }
+            } else {
+                float[] row = (float[]) output[0];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = input.getFloat(i * 4);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that the labels are read one per line.
+     */
+    @Test
+    public void testReadLabels() throws IOException {
+        List<String> labels = LabelLoader.readLabels(
+                new ByteArrayInputStream("red\ngreen\nblue\n".getBytes("UTF-8")));
+        Assert.assertEquals(Arrays.asList("red", "green", "blue"), labels);
+    }
+
+    /**
+     * Tests that an image goes through crop, fill, inference and top-K.
+     */
+    @Test
+    public void testClassify() {
+        HeadlessClassifier classifier = new HeadlessClassifier(new FirstPixelEngine(),
+                Arrays.asList("red", "green", "blue"), 2, 2, 2);
+        int[] pixels = new int[4 * 2];
+        // Top left pixel of the center square
+        pixels[1] = 0xFF20FF80;
+
+        List<Recognition> results = classifier.classify(pixels, 4, 2);
+
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals("green", results.get(0).getTitle());
+        Assert.assertEquals(1f, results.get(0).getConfidence(), 1e-6f);
+        Assert.assertEquals("blue", results.get(1).getTitle());
+    }
+
+    /**
+     * Tests that a float model gets normalized input and float results.
+     */
+    @Test
+    public void testClassifyFloatModel() {
+        ModelDescriptor descriptor = ModelDescriptor.float32(null, null, 1, 1, 127.5f, 127.5f);
+        HeadlessClassifier classifier = new HeadlessClassifier(new FirstPixelEngine(),
+                Arrays.asList("red", "green", "blue"), descriptor, 3);
+
+        List<Recognition> results = classifier.classifyInputSize(new int[] {0xFF00FF80});
+
+        // Normalized channels are -1, 1 and 128 / 127.5 - 1, below zero is filtered out
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals("green", results.get(0).getTitle());
+        Assert.assertEquals(1f, results.get(0).getConfidence(), 1e-6f);
+        Assert.assertEquals("blue", results.get(1).getTitle());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class InOrderDeliveryTest {
+
+    /** Records what it receives, in order. */
+    private static class Recorder implements InOrderDelivery.Receiver<String> {
+        final List<Long> sequences = Collections.synchronizedList(new ArrayList<Long>());
+        final List<String> items = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void deliver(long sequence, String item) {
+            sequences.add(sequence);
+            items.add(item);
+        }
+    }
+
+    @Test
+    public void testItemsCompletedOutOfOrderAreDeliveredInOrder() {
+        Recorder recorder = new Recorder();
+        InOrderDelivery<String> delivery = new InOrderDelivery<>(recorder);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, delivery.nextSequence());
+        }
+
+        delivery.complete(2, "c");
+        delivery.complete(1, "b");
+        assertTrue(recorder.items.isEmpty());
+        delivery.complete(0, "a");
+        assertEquals(Arrays.asList(0L, 1L, 2L), recorder.sequences);
+        delivery.complete(3, "d");
+        assertEquals(Arrays.asList("a", "b", "c", "d"), recorder.items);
+    }
+
+    @Test
+    public void testFailedItemKeepsItsPlace() {
+        Recorder recorder = new Recorder();
+        InOrderDelivery<String> delivery = new InOrderDelivery<>(recorder);
+        for (int i = 0; i < 3; i++) {
+            delivery.nextSequence();
+        }
+
+        delivery.complete(2, "c");
+        // The work of item 1 failed
+        delivery.complete(1, null);
+        delivery.complete(0, "a");
+
+        assertEquals(3, recorder.items.size());
+        assertEquals("a", recorder.items.get(0));
+        assertNull(recorder.items.get(1));
+        assertEquals("c", recorder.items.get(2));
+    }
+
+    @Test
+    public void testFailingReceiverDoesNotHoldLaterItems() {
+        final IllegalStateException failure = new IllegalStateException("listener bug");
+        final List<String> delivered = new ArrayList<>();
+        InOrderDelivery<String> delivery = new InOrderDelivery<>(
+                new InOrderDelivery.Receiver<String>() {
+                    @Override
+                    public void deliver(long sequence, String item) {
+                        delivered.add(item);
+                        if (sequence == 0) {
+                            throw failure;
+                        }
+                    }
+                });
+        delivery.nextSequence();
+        delivery.nextSequence();
+        delivery.complete(1, "b");
+
+        try {
+            delivery.complete(0, "a");
+            fail("Expected the receiver failure");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(Arrays.asList("a", "b"), delivered);
+
+        delivery.complete(delivery.nextSequence(), "c");
+        assertEquals("c", delivered.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsSequencesNotHandedOut() {
+        InOrderDelivery<String> delivery = new InOrderDelivery<>(new Recorder());
+        delivery.complete(0, "a");
+    }
+
+    @Test
+    public void testConcurrentCompletionsAreDeliveredInOrder() throws InterruptedException {
+        final Recorder recorder = new Recorder();
+        final InOrderDelivery<String> delivery = new InOrderDelivery<>(recorder);
+        final int threadCount = 4;
+        final int itemsPerThread = 2500;
+        final long[] sequences = new long[threadCount * itemsPerThread];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = delivery.nextSequence();
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int first = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // Threads complete interleaved sequence numbers, racing each other
+                    for (int i = first; i < sequences.length; i += threadCount) {
+                        delivery.complete(sequences[i], String.valueOf(sequences[i]));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(sequences.length, recorder.sequences.size());
+        for (int i = 0; i < sequences.length; i++) {
+            assertEquals(i, (long) recorder.sequences.get(i));
+            assertEquals(String.valueOf(i), recorder.items.get(i));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public class ModelBundleTest {
+
+    private static final List<String> LABELS = Arrays.asList("background", "caf\u00e9", "", "tabby");
+
+    private static File writeBundle(byte[] model, ModelDescriptor descriptor) throws IOException {
+        File file = File.createTempFile("model", ".tflb");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            ModelBundle.write(out, model, LABELS, descriptor);
+        }
+        return file;
+    }
+
+    private static byte[] model(int length) {
+        byte[] model = new byte[length];
+        for (int i = 0; i < length; i++) {
+            model[i] = (byte) (i * 31);
+        }
+        return model;
+    }
+
+    /**
+     * Tests that the model, labels and metadata read back from a bundle are the ones written.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        final byte[] model = model(1000);
+        ModelBundle bundle = ModelBundle.open(writeBundle(model,
+                ModelDescriptor.float32("model.tflite", "labels.txt", 299, 299, 127.5f, 127.5f)));
+        bundle.verify();
+
+        ModelDescriptor descriptor = bundle.getDescriptor();
+        Assert.assertEquals(299, descriptor.getInputWidth());
+        Assert.assertEquals(299, descriptor.getInputHeight());
+        Assert.assertEquals(ModelDescriptor.DataType.FLOAT32, descriptor.getInputType());
+        Assert.assertEquals(ModelDescriptor.DataType.FLOAT32, descriptor.getOutputType());
+        Assert.assertEquals(127.5f, descriptor.getInputMean(), 0f);
+        Assert.assertEquals(127.5f, descriptor.getInputStd(), 0f);
+
+        Assert.assertEquals(LABELS, bundle.getLabels());
+        Assert.assertEquals("tabby", bundle.getLabel(3));
+
+        MappedByteBuffer mapped = bundle.getModel();
+        Assert.assertEquals(model.length, mapped.capacity());
+        byte[] read = new byte[model.length];
+        mapped.duplicate().get(read);
+        Assert.assertArrayEquals(model, read);
+    }
+
+    /**
+     * Tests that a single flipped bit in the model fails verification.
+     */
+    @Test
+    public void testVerifyDetectsCorruption() throws IOException {
+        File file = writeBundle(model(1000), ModelDescriptor.MOBILENET_QUANT_V1_224);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 10);
+            final int value = raf.read();
+            raf.seek(raf.length() - 10);
+            raf.write(value ^ 1);
+        }
+
+        ModelBundle bundle = ModelBundle.open(file);
+        try {
+            bundle.verify();
+            Assert.fail("Expected a checksum mismatch");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that a label whose offsets point outside the label bytes is refused, while the
+     * other labels can still be looked up.
+     */
+    @Test
+    public void testRejectsCorruptLabelOffsets() throws IOException {
+        File file = writeBundle(model(1000), ModelDescriptor.MOBILENET_QUANT_V1_224);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // End of label 2 and start of label 3, little-endian
+            raf.seek(ModelBundle.HEADER_SIZE + 4 * 3);
+            raf.write(new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f});
+        }
+
+        ModelBundle bundle = ModelBundle.open(file);
+        Assert.assertEquals("caf\u00e9", bundle.getLabel(1));
+        for (int index = 2; index < LABELS.size(); index++) {
+            try {
+                bundle.getLabel(index);
+                Assert.fail("Expected label " + index + " to be refused");
+            } catch (IllegalStateException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsOtherFiles() throws IOException {
+        File file = File.createTempFile("model", ".tflite");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(model(1000));
+        }
+        try {
+            ModelBundle.open(file);
+            Assert.fail("Expected a plain model to be rejected");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+}
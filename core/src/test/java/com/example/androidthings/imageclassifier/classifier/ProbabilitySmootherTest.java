@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ProbabilitySmootherTest {
+    private static final List<String> LABELS = Arrays.asList("cat", "dog", "fox");
+
+    /**
+     * Tests that the first output is taken as is, and later ones are blended by alpha.
+     */
+    @Test
+    public void testExponentialMovingAverage() {
+        ProbabilitySmoother smoother = new ProbabilitySmoother(3, 0.25f);
+        smoother.update(new float[] {1f, 0f, 0f});
+        smoother.update(new float[] {0f, 1f, 0f});
+
+        Assert.assertEquals(0.75f, smoother.getProbabilities()[0], 1e-6f);
+        Assert.assertEquals(0.25f, smoother.getProbabilities()[1], 1e-6f);
+        Assert.assertEquals(0f, smoother.getProbabilities()[2], 1e-6f);
+    }
+
+    /**
+     * Tests that a near-tied label winning one frame does not take over the top result.
+     */
+    @Test
+    public void testNoFlicker() {
+        ProbabilitySmoother smoother = new ProbabilitySmoother(3, 0.3f);
+        TopKSelector selector = new TopKSelector(1, 0f);
+        byte[] catFrame = {(byte) 130, (byte) 120, 5};
+        byte[] dogFrame = {(byte) 120, (byte) 130, 5};
+
+        for (int i = 0; i < 5; i++) {
+            smoother.update(catFrame);
+        }
+        smoother.update(dogFrame);
+
+        Assert.assertEquals("cat",
+                selector.select(smoother.getProbabilities(), LABELS).get(0).getTitle());
+    }
+}
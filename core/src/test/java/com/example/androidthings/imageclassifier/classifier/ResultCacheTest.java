@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ResultCacheTest {
+    private static final int SIZE = 64;
+
+    private static final List<Recognition> RESULTS =
+            Collections.singletonList(new Recognition("0", "scene", 0.9f));
+
+    private static int[] gradient(int brightness) {
+        int[] pixels = new int[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                final int value = Math.min(255, ((x * 7 + y * 3) % 200) + brightness);
+                pixels[y * SIZE + x] = 0xFF000000 | value << 16 | value << 8 | value;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Tests that a uniform brightness change keeps the hash, and a different image changes it.
+     */
+    @Test
+    public void testHashIgnoresExposureChange() {
+        PerceptualHash hash = new PerceptualHash();
+        final long original = hash.compute(gradient(0), SIZE, SIZE);
+        Assert.assertEquals(0, PerceptualHash.distance(original,
+                hash.compute(gradient(20), SIZE, SIZE)));
+
+        int[] mirrored = gradient(0);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE / 2; x++) {
+                final int tmp = mirrored[y * SIZE + x];
+                mirrored[y * SIZE + x] = mirrored[y * SIZE + SIZE - 1 - x];
+                mirrored[y * SIZE + SIZE - 1 - x] = tmp;
+            }
+        }
+        Assert.assertTrue(PerceptualHash.distance(original,
+                hash.compute(mirrored, SIZE, SIZE)) > 8);
+    }
+
+    /**
+     * Tests that hashes within the tolerance hit, and others miss.
+     */
+    @Test
+    public void testHammingTolerance() {
+        ResultCache cache = new ResultCache(4, 2, 1000);
+        final List<Recognition> cached = cache.put(0b1111L, RESULTS, 0);
+
+        Assert.assertSame(cached, cache.get(0b1100L, 0));
+        Assert.assertNull(cache.get(0b1000L, 0));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    /**
+     * Tests that callers cannot change the results handed to every later hit.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCachedResultsAreUnmodifiable() {
+        ResultCache cache = new ResultCache(4, 0, 1000);
+        cache.put(1L, new ArrayList<>(RESULTS), 0);
+
+        cache.get(1L, 0).clear();
+    }
+
+    /**
+     * Tests that the least recently used entry is evicted.
+     */
+    @Test
+    public void testLruEviction() {
+        ResultCache cache = new ResultCache(2, 0, 1000);
+        cache.put(1L, RESULTS, 0);
+        cache.put(2L, RESULTS, 0);
+        cache.get(1L, 0);
+        cache.put(3L, RESULTS, 0);
+
+        Assert.assertNotNull(cache.get(1L, 0));
+        Assert.assertNull(cache.get(2L, 0));
+        Assert.assertNotNull(cache.get(3L, 0));
+    }
+
+    /**
+     * Tests that entries are not returned after their time to live.
+     */
+    @Test
+    public void testTtl() {
+        ResultCache cache = new ResultCache(2, 0, 1000);
+        cache.put(1L, RESULTS, 0);
+
+        Assert.assertNotNull(cache.get(1L, TimeUnit.MILLISECONDS.toNanos(1000)));
+        Assert.assertNull(cache.get(1L, TimeUnit.MILLISECONDS.toNanos(1001)));
+        Assert.assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class TopKSelectorTest {
+    private static final List<String> LABELS = Arrays.asList("cat", "dog", "fox", "owl");
+
+    /**
+     * Tests that the most confident labels are returned in order, for both output types.
+     */
+    @Test
+    public void testSelectsMostConfidentFirst() {
+        TopKSelector selector = new TopKSelector(2, 0f);
+
+        List<Recognition> quantized =
+                selector.select(new byte[] {10, (byte) 200, 5, 100}, LABELS);
+        Assert.assertEquals(2, quantized.size());
+        Assert.assertEquals("dog", quantized.get(0).getTitle());
+        Assert.assertEquals("owl", quantized.get(1).getTitle());
+
+        List<Recognition> floats = selector.select(new float[] {0.5f, 0.1f, 0.3f, 0.1f}, LABELS);
+        Assert.assertEquals(2, floats.size());
+        Assert.assertEquals("cat", floats.get(0).getTitle());
+        Assert.assertEquals("fox", floats.get(1).getTitle());
+    }
+
+    /**
+     * Tests that labels under the minimum confidence are left out.
+     */
+    @Test
+    public void testMinConfidence() {
+        TopKSelector selector = new TopKSelector(3, 0.4f);
+
+        List<Recognition> results = selector.select(new float[] {0.5f, 0.1f, 0.3f, 0.1f}, LABELS);
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals("cat", results.get(0).getTitle());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNoResults() {
+        new TopKSelector(0, 0f);
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.example.androidthings.imageclassifier.metrics.PipelineMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class LocalHttpServerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int LOAD_CLIENTS = 8;
+    private static final int LOAD_REQUESTS_PER_CLIENT = 50;
+
+    /** Answers with the request body, or the method for requests without one. */
+    private static final LocalHttpServer.Handler ECHO = new LocalHttpServer.Handler() {
+        @Override
+        public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+            if (request.getBody().length == 0) {
+                return LocalHttpServer.Response.text(200, request.getMethod());
+            }
+            return new LocalHttpServer.Response(200, "application/octet-stream",
+                    request.getBody());
+        }
+    };
+
+    private static LocalHttpServer startServer(int workers, int queueSize, int maxBodyBytes,
+                                               String path, LocalHttpServer.Handler handler)
+            throws IOException {
+        LocalHttpServer server = new LocalHttpServer(InetAddress.getLoopbackAddress(), 0,
+                workers, queueSize, maxBodyBytes);
+        server.addHandler(path, handler);
+        server.start();
+        return server;
+    }
+
+    /** A response read until the server closed the connection. */
+    private static class Reply {
+        final int status;
+        final String head;
+        final String body;
+
+        Reply(int status, String head, String body) {
+            this.status = status;
+            this.head = head;
+            this.body = body;
+        }
+    }
+
+    private static Socket connect(LocalHttpServer server) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String method, String path, byte[] body)
+            throws IOException {
+        OutputStream out = socket.getOutputStream();
+        String head = method + " " + path + " HTTP/1.1\r\nHost: localhost\r\n";
+        if (body != null) {
+            head += "Content-Length: " + body.length + "\r\n";
+        }
+        out.write((head + "\r\n").getBytes(UTF_8));
+        if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    private static Reply receive(Socket socket) throws IOException {
+        try {
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int count;
+            while ((count = in.read(chunk)) != -1) {
+                response.write(chunk, 0, count);
+            }
+            String text = new String(response.toByteArray(), UTF_8);
+            int bodyStart = text.indexOf("\r\n\r\n");
+            return new Reply(Integer.parseInt(text.split(" ")[1]), text.substring(0, bodyStart),
+                    text.substring(bodyStart + 4));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static Reply request(LocalHttpServer server, String method, String path,
+                                 byte[] body) throws IOException {
+        Socket socket = connect(server);
+        send(socket, method, path, body);
+        return receive(socket);
+    }
+
+    @Test
+    public void testEchoesRequests() throws IOException {
+        LocalHttpServer server = startServer(1, 1, 1024, "/echo", ECHO);
+        try {
+            Reply get = request(server, "GET", "/echo?verbose=1", null);
+            assertEquals(200, get.status);
+            assertEquals("GET", get.body);
+
+            Reply post = request(server, "POST", "/echo", "payload".getBytes(UTF_8));
+            assertEquals(200, post.status);
+            assertEquals("payload", post.body);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Tests the metrics endpoint as the activity sets it up: GET only, with no request body
+     * allowed.
+     */
+    @Test
+    public void testServesPrometheusMetrics() throws IOException {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        metrics.increment(PipelineMetrics.Counter.FRAMES_IN);
+        metrics.record(PipelineMetrics.Stage.INFERENCE, 80000000L);
+        LocalHttpServer server = startServer(1, 4, 0, "/metrics", new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                StringBuilder text = new StringBuilder();
+                metrics.writePrometheus(text);
+                return new LocalHttpServer.Response(200, "text/plain; version=0.0.4",
+                        text.toString().getBytes(UTF_8));
+            }
+        });
+        try {
+            Reply reply = request(server, "GET", "/metrics", null);
+            assertEquals(200, reply.status);
+            assertTrue(reply.head, reply.head.contains("Content-Type: text/plain; version=0.0.4"));
+            assertTrue(reply.head, reply.head.contains(
+                    "Content-Length: " + reply.body.getBytes(UTF_8).length));
+            assertTrue(reply.body, reply.body.contains("imageclassifier_frames_in_total 1\n"));
+            assertTrue(reply.body, reply.body.contains(
+                    "imageclassifier_stage_latency_seconds_count{stage=\"inference\"} 1\n"));
+
+            assertEquals(413, request(server, "POST", "/metrics", new byte[1]).status);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRejectsInvalidRequests() throws IOException {
+        LocalHttpServer server = startServer(1, 1, 16, "/echo", ECHO);
+        try {
+            assertEquals(404, request(server, "GET", "/missing", null).status);
+            assertEquals(413, request(server, "POST", "/echo", new byte[17]).status);
+            assertEquals(200, request(server, "POST", "/echo", new byte[16]).status);
+
+            Socket socket = connect(server);
+            socket.getOutputStream().write("garbage\r\n\r\n".getBytes(UTF_8));
+            assertEquals(400, receive(socket).status);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * A client trickling header lines, each well within the socket timeout, is dropped once the
+     * request deadline passes, and the only worker is free again.
+     */
+    @Test
+    public void testDropsRequestsNotReceivedInTime() throws Exception {
+        LocalHttpServer server = new LocalHttpServer(InetAddress.getLoopbackAddress(), 0, 1, 1,
+                16, 500);
+        server.addHandler("/echo", ECHO);
+        server.start();
+        try {
+            Socket slow = connect(server);
+            OutputStream out = slow.getOutputStream();
+            boolean dropped = false;
+            try {
+                out.write("GET /echo HTTP/1.1\r\n".getBytes(UTF_8));
+                for (int i = 0; i < 40; i++) {
+                    out.write("X-Slow: 1\r\n".getBytes(UTF_8));
+                    out.flush();
+                    Thread.sleep(100);
+                }
+                slow.setSoTimeout(1000);
+                dropped = slow.getInputStream().read() == -1;
+            } catch (SocketTimeoutException e) {
+                // Still open, waiting for the rest of the request
+                dropped = false;
+            } catch (IOException e) {
+                // Reset by the server
+                dropped = true;
+            } finally {
+                slow.close();
+            }
+            assertTrue(dropped);
+
+            assertEquals(200, request(server, "GET", "/echo", null).status);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testHidesHandlerFailures() throws IOException {
+        LocalHttpServer server = startServer(1, 1, 0, "/fail", new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                throw new IllegalStateException("/data/secret/model.tflite is missing");
+            }
+        });
+        try {
+            Reply reply = request(server, "GET", "/fail", null);
+            assertEquals(500, reply.status);
+            assertFalse(reply.body, reply.body.contains("secret"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRejectsRequestsWhenWorkersAndQueueAreFull() throws Exception {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        LocalHttpServer server = startServer(1, 1, 0, "/slow", new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                handling.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return LocalHttpServer.Response.text(200, "done");
+            }
+        });
+        try {
+            Socket running = connect(server);
+            send(running, "GET", "/slow", null);
+            assertTrue(handling.await(5, TimeUnit.SECONDS));
+            Socket queued = connect(server);
+            send(queued, "GET", "/slow", null);
+
+            // The only worker is busy and the queue holds one request
+            assertEquals(503, request(server, "GET", "/slow", null).status);
+
+            release.countDown();
+            assertEquals(200, receive(running).status);
+            assertEquals(200, receive(queued).status);
+        } finally {
+            release.countDown();
+            server.close();
+        }
+    }
+
+    /**
+     * Several clients sending requests back to back, as many as the workers and queue can take,
+     * all get their own body back.
+     */
+    @Test
+    public void testLoadFromConcurrentClients() throws Exception {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final LocalHttpServer server = startServer(4, LOAD_CLIENTS, 1024, "/echo",
+                new LocalHttpServer.Handler() {
+                    @Override
+                    public LocalHttpServer.Response handle(LocalHttpServer.Request request)
+                            throws IOException {
+                        final int running = concurrent.incrementAndGet();
+                        while (true) {
+                            int max = maxConcurrent.get();
+                            if (running <= max || maxConcurrent.compareAndSet(max, running)) {
+                                break;
+                            }
+                        }
+                        try {
+                            return ECHO.handle(request);
+                        } finally {
+                            concurrent.decrementAndGet();
+                        }
+                    }
+                });
+        ExecutorService clients = Executors.newFixedThreadPool(LOAD_CLIENTS);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < LOAD_CLIENTS; i++) {
+                final int client = i;
+                results.add(clients.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        int ok = 0;
+                        for (int j = 0; j < LOAD_REQUESTS_PER_CLIENT; j++) {
+                            String payload = "client " + client + " request " + j;
+                            Reply reply = request(server, "POST", "/echo",
+                                    payload.getBytes(UTF_8));
+                            if (reply.status == 200 && reply.body.equals(payload)) {
+                                ok++;
+                            }
+                        }
+                        return ok;
+                    }
+                }));
+            }
+            int ok = 0;
+            for (Future<Integer> result : results) {
+                ok += result.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(LOAD_CLIENTS * LOAD_REQUESTS_PER_CLIENT, ok);
+            assertTrue(maxConcurrent.get() <= 4);
+        } finally {
+            clients.shutdownNow();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    /**
+     * Tests that every value falls in a bucket whose upper bound is within 12.5% of it.
+     */
+    @Test
+    public void testBucketPrecision() {
+        for (long micros = 0; micros < 1000000; micros += 7) {
+            final int index = LatencyHistogram.bucketIndex(micros);
+            final long upperBound = LatencyHistogram.bucketUpperBound(index);
+            Assert.assertTrue(micros + " above its bucket", micros <= upperBound);
+            Assert.assertTrue(micros + " in a too wide bucket", upperBound <= micros * 1.125);
+            if (index > 0) {
+                Assert.assertTrue(micros + " below its bucket",
+                        micros > LatencyHistogram.bucketUpperBound(index - 1));
+            }
+        }
+        Assert.assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                LatencyHistogram.bucketIndex(Long.MAX_VALUE / 1000));
+    }
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(millis * 1000000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(100, snapshot.getCount());
+        Assert.assertEquals(5050000, snapshot.getSumMicros());
+        assertWithinBucket(50000, snapshot.getQuantileMicros(0.5));
+        assertWithinBucket(90000, snapshot.getQuantileMicros(0.9));
+        assertWithinBucket(99000, snapshot.getQuantileMicros(0.99));
+        Assert.assertEquals(0, new LatencyHistogram().snapshot().getQuantileMicros(0.5));
+    }
+
+    /**
+     * Tests that no recording is lost when threads record at the same time.
+     */
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threads = 4;
+        final int recordsPerThread = 100000;
+        Thread[] recorders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            recorders[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < recordsPerThread; i++) {
+                        histogram.record(1000000L);
+                    }
+                }
+            });
+            recorders[t].start();
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        Assert.assertEquals(threads * recordsPerThread, histogram.snapshot().getCount());
+    }
+
+    private static void assertWithinBucket(long expectedMicros, long actualMicros) {
+        Assert.assertTrue(actualMicros + " below " + expectedMicros,
+                actualMicros >= expectedMicros);
+        Assert.assertTrue(actualMicros + " far above " + expectedMicros,
+                actualMicros <= expectedMicros * 1.125);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PipelineMetricsTest {
+
+    @Test
+    public void testPrometheusFormat() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.increment(PipelineMetrics.Counter.FRAMES_IN);
+        metrics.increment(PipelineMetrics.Counter.FRAMES_IN);
+        metrics.record(PipelineMetrics.Stage.INFERENCE, 80000000L);
+
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus(out);
+        final String text = out.toString();
+
+        Assert.assertTrue(text, text.contains("# TYPE imageclassifier_frames_in_total counter\n"
+                + "imageclassifier_frames_in_total 2\n"));
+        Assert.assertTrue(text, text.contains("imageclassifier_frames_dropped_total 0\n"));
+        Assert.assertTrue(text, text.contains(
+                "imageclassifier_stage_latency_seconds_count{stage=\"inference\"} 1\n"));
+        Assert.assertTrue(text, text.contains(
+                "imageclassifier_stage_latency_seconds_sum{stage=\"inference\"} 0.080000\n"));
+        Assert.assertTrue(text, text.contains("imageclassifier_stage_latency_seconds"
+                + "{stage=\"inference\",quantile=\"0.99\"} 0.08"));
+        Assert.assertTrue(metrics.summary().contains("inference"));
+        Assert.assertFalse(metrics.summary().contains("decode"));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TraceRecorderTest {
+
+    private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testCapacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(1, new TraceRecorder(1).getCapacity());
+        assertEquals(8, new TraceRecorder(5).getCapacity());
+        assertEquals(8, new TraceRecorder(8).getCapacity());
+    }
+
+    @Test
+    public void testSpansAreTaggedWithTheCurrentFrame() throws IOException {
+        TraceRecorder recorder = new TraceRecorder(16);
+        final long now = System.nanoTime();
+        recorder.record("idle", now - 3000, now - 2000);
+        final long frameId = recorder.startFrame();
+        recorder.record("decode", now - 2000, now - 1500);
+        recorder.record("tts_start", 41, now - 1000, now);
+
+        StringBuilder trace = new StringBuilder();
+        assertEquals(3, recorder.writeChromeTrace(trace, MINUTE_NANOS));
+        final String json = trace.toString();
+        assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(json.contains("\"name\":\"idle\""));
+        assertTrue(json.contains("\"args\":{\"frame\":" + TraceRecorder.NO_FRAME + "}"));
+        assertTrue(json.contains("\"dur\":0.500,\"args\":{\"frame\":" + frameId + "}"));
+        assertTrue(json.contains("\"args\":{\"frame\":41}"));
+        assertEquals(3, count(json, "\"ph\":\"X\""));
+        // One metadata event names the thread that recorded the spans
+        assertEquals(1, count(json, "\"ph\":\"M\""));
+        assertTrue(json.contains("\"args\":{\"name\":\"" + Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void testOnlyTheLatestSpansAreKept() throws IOException {
+        TraceRecorder recorder = new TraceRecorder(4);
+        final long now = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            recorder.record("span" + i, i, now, now);
+        }
+
+        StringBuilder trace = new StringBuilder();
+        assertEquals(4, recorder.writeChromeTrace(trace, MINUTE_NANOS));
+        final String json = trace.toString();
+        assertFalse(json.contains("\"span5\""));
+        for (int i = 6; i < 10; i++) {
+            assertTrue(json.contains("\"span" + i + "\""));
+        }
+    }
+
+    @Test
+    public void testSpansOutsideTheWindowAreLeftOut() throws IOException {
+        TraceRecorder recorder = new TraceRecorder(16);
+        final long now = System.nanoTime();
+        recorder.record("old", now - 2 * MINUTE_NANOS, now - 2 * MINUTE_NANOS + 1000);
+        recorder.record("recent", now - 1000, now);
+
+        StringBuilder trace = new StringBuilder();
+        assertEquals(1, recorder.writeChromeTrace(trace, MINUTE_NANOS));
+        assertFalse(trace.toString().contains("\"old\""));
+        assertTrue(trace.toString().contains("\"recent\""));
+    }
+
+    @Test
+    public void testConcurrentRecordingKeepsWholeSpans() throws Exception {
+        final TraceRecorder recorder = new TraceRecorder(64);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long frameId = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    recorder.setCurrentFrame(frameId);
+                    for (int i = 0; i < 10000; i++) {
+                        // Each thread records spans of its own length, tagged with its frame
+                        final long now = System.nanoTime();
+                        recorder.record("work", now - 1000 * (frameId + 1), now);
+                    }
+                }
+            }, "recorder-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        StringBuilder trace = new StringBuilder();
+        assertEquals(64, recorder.writeChromeTrace(trace, MINUTE_NANOS));
+        final String json = trace.toString();
+        int spans = 0;
+        for (int t = 0; t < threads.length; t++) {
+            spans += count(json, "\"dur\":" + (t + 1) + ".000,\"args\":{\"frame\":" + t + "}");
+        }
+        assertEquals(64, spans);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 The Android Things Samples Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.imageclassifier.classifier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Builds a {@link ModelBundle} from a {@code .tflite} model and its labels file.
+ *
+ * <p>Usage: {@code ModelBundleTool model.tflite labels.txt output.tflb width height
+ * [uint8 | float32 mean std]}
+ */
+public class ModelBundleTool {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 5 && !(args.length == 8 && "float32".equals(args[5]))
+                && !(args.length == 6 && "uint8".equals(args[5]))) {
+            System.err.println("Usage: ModelBundleTool model.tflite labels.txt output.tflb"
+                    + " width height [uint8 | float32 mean std]");
+            System.exit(2);
+        }
+        final File modelFile = new File(args[0]);
+        final File labelsFile = new File(args[1]);
+        final File bundleFile = new File(args[2]);
+        final int width = Integer.parseInt(args[3]);
+        final int height = Integer.parseInt(args[4]);
+        final ModelDescriptor descriptor = args.length == 8
+                ? ModelDescriptor.float32(modelFile.getName(), labelsFile.getName(), width,
+                        height, Float.parseFloat(args[6]), Float.parseFloat(args[7]))
+                : ModelDescriptor.quantized(modelFile.getName(), labelsFile.getName(), width,
+                        height);
+
+        byte[] model = Files.readAllBytes(modelFile.toPath());
+        List<String> labels = LabelLoader.readLabels(labelsFile);
+        try (OutputStream out = new FileOutputStream(bundleFile)) {
+            ModelBundle.write(out, model, labels, descriptor);
+        }
+
+        ModelBundle bundle = ModelBundle.open(bundleFile);
+        bundle.verify();
+        System.out.println("Wrote " + bundleFile + ": " + bundle.getDescriptor() + ", "
+                + bundle.getLabelCount() + " labels, " + bundleFile.length() + " bytes");
+    }
+}